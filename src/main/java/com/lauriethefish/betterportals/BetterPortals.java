@@ -10,15 +10,21 @@ import java.util.concurrent.Callable;
 
 import com.lauriethefish.betterportals.commands.MainCommand;
 import com.lauriethefish.betterportals.events.ChunkUnload;
+import com.lauriethefish.betterportals.entitymanipulation.ViewerIndex;
+import com.lauriethefish.betterportals.events.EntityIndexEvents;
 import com.lauriethefish.betterportals.events.EntityPortal;
 import com.lauriethefish.betterportals.events.EntityReplicationEvents;
 import com.lauriethefish.betterportals.events.JoinLeave;
 import com.lauriethefish.betterportals.events.PlayerTeleport;
 import com.lauriethefish.betterportals.events.PortalCreate;
 import com.lauriethefish.betterportals.multiblockchange.ChunkCoordIntPair;
+import com.lauriethefish.betterportals.network.DirectPacketWriter;
+import com.lauriethefish.betterportals.network.EntityPacketFilter;
 import com.lauriethefish.betterportals.portal.Portal;
+import com.lauriethefish.betterportals.portal.PortalScanCache;
 import com.lauriethefish.betterportals.portal.PortalSpawnSystem;
 import com.lauriethefish.betterportals.portal.PortalStorage;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
 import com.lauriethefish.betterportals.runnables.MainUpdate;
 import com.lauriethefish.betterportals.selection.WandInteract;
 
@@ -51,8 +57,11 @@ public class BetterPortals extends JavaPlugin {
 
     @Getter private PortalSpawnSystem portalSpawnSystem = new PortalSpawnSystem(this);
     @Getter private MainUpdate portalUpdator;
+    // Which players are viewing each entity replicated through a portal
+    @Getter private ViewerIndex viewerIndex = new ViewerIndex();
     public Config config;
     private PortalStorage storage;
+    private PortalScanCache scanCache;
 
     // Item given to the player to select portals
     @Getter private ItemStack portalWand;
@@ -78,6 +87,17 @@ public class BetterPortals extends JavaPlugin {
             disablePlugin(); return; // If loading failed, disable the plugin
         }
 
+        // Find the NMS members used to send packets, if any are missing then this server version isn't supported
+        try {
+            PacketAccessors.load();
+            DirectPacketWriter.load(config.directPacketEncoding);
+            EntityPacketFilter.load(config.entityPacketFiltering);
+        }   catch(IllegalStateException e)  {
+            getLogger().warning(ChatColor.RED + "Unable to find the packets used by the plugin, this server version may not be supported");
+            e.printStackTrace();
+            disablePlugin(); return;
+        }
+
         createPortalWand();
         registerCommands();
         registerEvents();
@@ -86,6 +106,7 @@ public class BetterPortals extends JavaPlugin {
         try {
             portals = storage.loadPortals();
             portalUpdator = new MainUpdate(this);
+            loadScanCache();
         }   catch(Exception e)  {
             getLogger().warning(ChatColor.RED + "Error parsing portal data file, this is likely because it is invalid yaml");
             e.printStackTrace();
@@ -157,7 +178,12 @@ public class BetterPortals extends JavaPlugin {
     }
 
     public void removePlayer(Player player)  {
-        players.remove(player.getUniqueId());
+        PlayerData playerData = players.remove(player.getUniqueId());
+        if(playerData != null)  {
+            // The player's fake entities must be removed from the viewer index, but there's no need to send packets to a player who has left
+            playerData.getEntityManipulator().resetAll(false);
+            playerData.getPacketScheduler().close();
+        }
     }
 
     // Finds the closest portal to the given location that is closer than minimumDistance
@@ -225,9 +251,19 @@ public class BetterPortals extends JavaPlugin {
     // This method is called when the plugin is disabled
     @Override
     public void onDisable() {
+        // Remove the channel handlers first, so that movement packets don't queue renders while the render workers are stopping
+        for(PlayerData player : players.values())   {
+            player.removeChannelHandler();
+        }
+
+        if(portalUpdator != null)   {
+            portalUpdator.shutdown();
+        }
+
         for(PlayerData player : players.values())   {
             player.getEntityManipulator().resetAll(true);
             player.resetSurroundingBlockStates(true);
+            player.getPacketScheduler().flush();
         }
 
         // Save all of the portals to disk
@@ -237,6 +273,29 @@ public class BetterPortals extends JavaPlugin {
             getLogger().warning(ChatColor.RED + "Error saving portal data. This could be due to lack of write file access");
             e.printStackTrace();
         }
+
+        if(scanCache != null)   {
+            try {
+                scanCache.save(portals.values());
+            }   catch(Exception e)  {
+                getLogger().warning(ChatColor.RED + "Error saving portal scan cache. This could be due to lack of write file access");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Loads the blocks found by each portal's last scan, so that portals don't need to be scanned before they are first shown
+    private void loadScanCache()    {
+        if(!config.cachePortalScans)    {return;}
+
+        scanCache = new PortalScanCache(this);
+        try {
+            scanCache.load(portals);
+        }   catch(Exception e)  {
+            // The cache is only an optimisation, so the portals will just be scanned as usual
+            getLogger().warning("Failed to load portal scan cache, portals will be rescanned");
+            e.printStackTrace();
+        }
     }
 
     private void registerCommands() {
@@ -267,5 +326,8 @@ public class BetterPortals extends JavaPlugin {
         pm.registerEvents(new EntityPortal(this), this);
         pm.registerEvents(new WandInteract(this), this);
         pm.registerEvents(new PlayerTeleport(this), this);
+        if(config.useEntityIndex)   {
+            pm.registerEvents(new EntityIndexEvents(this), this);
+        }
     }
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import com.lauriethefish.betterportals.math.MathUtils;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
 import org.bukkit.util.Vector;
 
 import lombok.Getter;
@@ -37,6 +38,34 @@ public class BlockRaycastData {
         this.destData = edge ? edgeData : getNMSData(destBlockState);
     }
 
+    // Used when the destination block was read from a region file, instead of from the world
+    public BlockRaycastData(BlockRotator rotator, Location originLoc, BlockData destData, boolean edge)   {
+        this.originVec = MathUtils.moveToCenterOfBlock(originLoc.toVector());
+        this.originData = getNMSData(originLoc.getBlock().getState());
+        this.destData = edge ? edgeData : getNMSData(rotator.rotateToOrigin(destData));
+    }
+
+    // Used when loading cached scan results, where the data has already been found
+    public BlockRaycastData(Vector originVec, Object originData, Object destData)   {
+        this.originVec = originVec;
+        this.originData = originData;
+        this.destData = destData;
+    }
+
+    // Converts NMS IBlockData to and from its ID in the global palette, used for storing block data on disk
+    public static int getCombinedId(Object nmsData) {
+        return (int) ReflectUtils.runMethod(null, ReflectUtils.getMcClass("Block"), "getCombinedId", new Class[]{ReflectUtils.getMcClass("IBlockData")}, new Object[]{nmsData});
+    }
+
+    public static Object getNMSData(int combinedId) {
+        return ReflectUtils.runMethod(null, ReflectUtils.getMcClass("Block"), "getByCombinedId", new Class[]{int.class}, new Object[]{combinedId});
+    }
+
+    // Finds the NMS IBlockData from a bukkit BlockData, only usable in modern versions
+    public static Object getNMSData(BlockData data) {
+        return ReflectUtils.runMethod(data, "getState");
+    }
+
     public static Object getNMSData(Material mat)  {
         Object block = ReflectUtils.runMethod(null, ReflectUtils.getBukkitClass("util.CraftMagicNumbers"), "getBlock", new Class[]{Material.class}, new Object[]{mat});
         return ReflectUtils.getField(block, "blockData");
@@ -45,7 +74,7 @@ public class BlockRaycastData {
     @SuppressWarnings("deprecation")
     public static Object getNMSData(Material mat, byte data)    {
         int combinedId = mat.getId() + (data << 12);
-        return ReflectUtils.runMethod(null, ReflectUtils.getMcClass("Block"), "getByCombinedId", new Class[]{int.class}, new Object[]{combinedId});
+        return getNMSData(combinedId);
     }
 
     private static Method getDataMethod = findGetDataMethod();
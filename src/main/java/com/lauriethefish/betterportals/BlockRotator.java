@@ -3,6 +3,7 @@ package com.lauriethefish.betterportals;
 import com.lauriethefish.betterportals.portal.Portal;
 
 import org.bukkit.block.BlockState;
+import org.bukkit.block.data.BlockData;
 
 // Interface that allows you to use either implementation of BlockRotator
 public interface BlockRotator {
@@ -15,4 +16,10 @@ public interface BlockRotator {
     }
 
     public void rotateToOrigin(BlockState state);
+
+    // Rotates BlockData that isn't part of a block in the world, e.g. when read from a region file
+    // BlockData only exists in modern versions, so by default it is returned unchanged
+    public default BlockData rotateToOrigin(BlockData data)  {
+        return data;
+    }
 }
@@ -22,11 +22,19 @@ public class BlockRotator_Modern implements BlockRotator    {
 
         BlockData data = state.getBlockData();
         if(data instanceof Directional)   {
-            Directional rotatable = (Directional) data;
-            // Get the face as a vector, and rotate it with the portals matrix, then set the direction to the new one
-            Vector finalDir = MathUtils.round(portal.rotateToOrigin(rotatable.getFacing().getDirection()));
-            rotatable.setFacing(ReflectUtils.getBlockFace(finalDir));
-            state.setBlockData(rotatable); // Set the modified block data
+            state.setBlockData(rotateToOrigin(data)); // Set the modified block data
         }
     }
+
+    @Override
+    public BlockData rotateToOrigin(BlockData data)   {
+        if(portal.getOriginDir() == portal.getDestDir() || !(data instanceof Directional))    {return data;}
+
+        // Clone the data, since it may be shared with other blocks
+        Directional rotatable = (Directional) data.clone();
+        // Get the face as a vector, and rotate it with the portals matrix, then set the direction to the new one
+        Vector finalDir = MathUtils.round(portal.rotateToOrigin(rotatable.getFacing().getDirection()));
+        rotatable.setFacing(ReflectUtils.getBlockFace(finalDir));
+        return rotatable;
+    }
 }
@@ -4,11 +4,14 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import com.lauriethefish.betterportals.portal.PortalRenderSettings;
+
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
@@ -26,10 +29,9 @@ public class Config {
     public List<WorldLink> worldLinks = new ArrayList<>();
     private Set<World> disabledWorlds = new HashSet<>();
 
-    // The min and max values for the blocks that the raycast will check
-    public double minXZ;
+    // The max values for the blocks that the raycast will check
+    // Portals can override these, so the values actually used by each portal are in PortalRenderSettings
     public double maxXZ;
-    public double minY;
     public double maxY;
 
     // The minimum distance required for the  portal effect to be displayed
@@ -39,18 +41,6 @@ public class Config {
     // The amount that the ray needs to be advanced each raycast iteration
     public double rayCastIncrement;
 
-    // Multiplyers used to access the array of changed blocks
-    // This array stores the ghost blocks that have been changed
-    // to help performance
-    private int yMultip;
-    private int zMultip;
-
-    public int arraySizeXZ;
-    public int arraySizeY;
-    public int totalArrayLength;
-
-    public int[] surroundingOffsets;
-
     // Maximum size of portals
     public Vector maxPortalSize;
 
@@ -63,6 +53,9 @@ public class Config {
     public boolean enableEntitySupport;
     public int entityCheckInterval;
 
+    // The render settings used by portals that don't override any of them
+    public PortalRenderSettings defaultRenderSettings;
+
     // If this is true then we will send packets to hide and show the portal blocks
     public boolean hidePortalBlocks;
 
@@ -75,6 +68,52 @@ public class Config {
     // Makes additional things be run on other threads that probably shouldn't be run on other threads
     public boolean unsafeMode;
 
+    // Whether or not to render the portal view on worker threads during the tick, and how long to wait for them
+    public boolean sameTickRendering;
+    public int renderThreads;
+    public long sameTickRenderTimeout;
+
+    // Whether or not to render the portal view when movement packets are received, as well as every tick
+    public boolean movementPacketRendering;
+
+    // Whether or not to read the blocks at the destination from the region files if the chunks there aren't loaded
+    public boolean renderFromRegionFiles;
+
+    // Whether or not to save the blocks found by each portal's last scan when the server stops
+    public boolean cachePortalScans;
+
+    // The number of changed blocks in a chunk section before the whole section is sent instead, 0 if whole sections aren't sent
+    public int wholeSectionThreshold;
+
+    // Whether or not to write block change and entity movement packets directly to the player's connection, instead of making NMS packets
+    public boolean directPacketEncoding;
+
+    // How many bytes of ghost blocks can be sent to each player per tick before blocks far from the portal are held back, 0 for no limit
+    public int packetBudgetPerTick;
+    // Ghost blocks closer than this to the portal are never held back
+    public double highPriorityBlockDistance;
+
+    // Whether or not to write each player's directly encoded packets to their connection with one flush at the end of each tick, instead of flushing every packet
+    public boolean batchPacketFlush;
+
+    // Whether or not to stop block updates from the server overwriting the ghost blocks that the player sees through portals
+    public boolean protectGhostBlocks;
+
+    // Whether or not to hide entities behind portals by making them invisible and stopping their packets, instead of destroying and respawning them
+    public boolean entityPacketFiltering;
+
+    // Whether or not to find the entities around portals from an index of the chunks near active portals, instead of searching the world
+    public boolean useEntityIndex;
+
+    // How many ticks an entity must be out of view before it is shown again or its fake entity is removed
+    public int entityVisibilityGraceTicks;
+
+    // Whether or not to lower the quality of the portal view for players whose connection can't keep up, and the limits for this
+    public boolean adaptiveQuality;
+    public int congestedPing;
+    public int recoveredPing;
+    public long congestedBacklogBytes;
+
     // Contains all the customisable messages of the plugin
     public ConfigurationSection messagesSection;
     public String chatPrefix;
@@ -93,26 +132,8 @@ public class Config {
         file = updateConfigFile(file);
 
         // Load all of the parameters from the config file
-        // Calculate the min and max values
         maxXZ = file.getInt("portalEffectSizeXZ");
-        minXZ = maxXZ * -1.0;
         maxY = file.getInt("portalEffectSizeY");
-        minY = maxY * -1.0;
-
-        // Calculate the multipliers for accessing the table
-        zMultip = (int) (maxXZ - minXZ + 1);
-        yMultip = zMultip * zMultip;
-        totalArrayLength = yMultip * (int) (maxY - minY + 1);
-
-        // Calculate the differences in index for quickly accessing the block array while building the mesh
-        surroundingOffsets = new int[]{
-            1,
-            -1,
-            yMultip,
-            -yMultip,
-            zMultip,
-            -zMultip
-        };
 
         portalActivationDistance = file.getDouble("portalActivationDistance");
         portalBlockUpdateInterval = file.getInt("portalBlockUpdateInterval");
@@ -124,6 +145,26 @@ public class Config {
         minimumPortalSpawnDistance = file.getInt("minimumPortalSpawnDistance");
         worldSwitchWaitTime = file.getInt("waitTimeAfterSwitchingWorlds");
         unsafeMode = file.getBoolean("unsafeMode");
+        defaultRenderSettings = new PortalRenderSettings(this, new HashMap<>());
+        sameTickRendering = file.getBoolean("sameTickRendering");
+        renderThreads = Math.max(file.getInt("renderThreads"), 1);
+        sameTickRenderTimeout = file.getLong("sameTickRenderTimeout");
+        movementPacketRendering = file.getBoolean("movementPacketRendering");
+        renderFromRegionFiles = file.getBoolean("renderFromRegionFiles");
+        cachePortalScans = file.getBoolean("cachePortalScans");
+        wholeSectionThreshold = Math.max(file.getInt("wholeSectionThreshold"), 0);
+        directPacketEncoding = file.getBoolean("directPacketEncoding");
+        packetBudgetPerTick = Math.max(file.getInt("packetBudgetPerTick"), 0);
+        highPriorityBlockDistance = file.getDouble("highPriorityBlockDistance");
+        batchPacketFlush = file.getBoolean("batchPacketFlush");
+        protectGhostBlocks = file.getBoolean("protectGhostBlocks");
+        entityPacketFiltering = file.getBoolean("entityPacketFiltering");
+        useEntityIndex = file.getBoolean("useEntityIndex");
+        entityVisibilityGraceTicks = Math.max(file.getInt("entityVisibilityGraceTicks"), 0);
+        adaptiveQuality = file.getBoolean("adaptiveQuality");
+        congestedPing = file.getInt("congestedPing");
+        recoveredPing = Math.min(file.getInt("recoveredPing"), congestedPing);
+        congestedBacklogBytes = file.getLong("congestedBacklogBytes");
 
         // If the maxRayCastDistance is set to -1, work it out based on the portalActivationDistance
         if(maxRayCastDistance == -1)    {
@@ -227,12 +268,6 @@ public class Config {
         return defaultConfig;
     }
 
-    // Finds the index in an array of blocks surrounding the portal
-    // Coordinates should be relative to the bottom left and lowest corner of the box
-    public int calculateBlockArrayIndex(double x, double y, double z)  {
-        return (int) (z * zMultip + y * yMultip + x) + totalArrayLength / 2;
-    }
-
     // Convenience methods for getting if a world is disabled
     public boolean isWorldDisabled(Location loc) {
         return isWorldDisabled(loc.getWorld());
@@ -1,10 +1,16 @@
 package com.lauriethefish.betterportals;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.lauriethefish.betterportals.entitymanipulation.EntityManipulator;
 import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager;
+import com.lauriethefish.betterportals.network.ConnectionMonitor;
+import com.lauriethefish.betterportals.network.GhostBlocks;
+import com.lauriethefish.betterportals.network.PacketScheduler;
+import com.lauriethefish.betterportals.network.PlayerChannelHandler;
 import com.lauriethefish.betterportals.portal.Portal;
 import com.lauriethefish.betterportals.selection.PortalSelection;
 
@@ -27,16 +33,34 @@ public class PlayerData {
     
     // The last portal that had the portal effect active.
     // If this changes, then the ghost blocks sent to the player are reset to avoid phantom blocks breaking the illusion
-    private Portal lastActivePortal = null;
+    // This is volatile since it is read by the render workers when re-rendering from movement packets
+    @Getter private volatile Portal lastActivePortal = null;
     // Store the surrouding blocks that have been sent to the player
     @Getter private Map<Vector, Object> surroundingPortalBlockStates = new HashMap<>();
+    // The blocks that the player currently sees differently to the world
+    // This is read by the channel handler when the server sends block updates, so that they don't overwrite the portal view
+    @Getter private GhostBlocks ghostBlocks = new GhostBlocks();
+
+    // Sends all of the packets made by the plugin for this player, holding back low priority ones if the player is sent too much at once
+    @Getter private PacketScheduler packetScheduler;
+
+    // Lowers the quality of the portal view if the player's connection can't keep up
+    @Getter private ConnectionMonitor connectionMonitor;
+    // Set if the portal view needs rendering, but is waiting for the update interval of a lowered quality level
+    @Getter @Setter private boolean renderPending = false;
 
     // Deals with hiding and showing entities
     @Getter private EntityManipulator entityManipulator;
+    // Builds and sends the block changes for this player, this is reused for every update so should be synchronized on while in use
+    @Getter private MultiBlockChangeManager blockChangeManager;
 
     // Last position of the player recorded by PlayerRayCast, used to decide whether or not to re-render to portal view
     @Getter @Setter private Vector lastPosition = null;
 
+    // The newest position received in a movement packet that hasn't been rendered yet
+    @Getter private AtomicReference<Vector> pendingMovement = new AtomicReference<>();
+    private PlayerChannelHandler channelHandler = null;
+
     @Getter @Setter private PortalSelection selection;
     @Getter @Setter private PortalSelection originSelection;
     @Getter @Setter private PortalSelection destinationSelection;
@@ -44,12 +68,29 @@ public class PlayerData {
     public PlayerData(BetterPortals pl, Player player) {
         this.pl = pl;
         this.player = player;
+        packetScheduler = new PacketScheduler(player, pl.config.packetBudgetPerTick, pl.config.batchPacketFlush);
+        connectionMonitor = new ConnectionMonitor(pl.config, player, packetScheduler);
         entityManipulator = new EntityManipulator(pl, this);
+        blockChangeManager = MultiBlockChangeManager.createInstance(player, packetScheduler);
+
+        // Only add a handler to the player's channel if a feature needs it
+        if(pl.config.movementPacketRendering || pl.config.protectGhostBlocks || pl.config.entityPacketFiltering)   {
+            channelHandler = new PlayerChannelHandler(pl, this);
+            channelHandler.inject();
+        }
+    }
+
+    // Removes anything added to the player's channel, called when the plugin is disabled
+    public void removeChannelHandler()  {
+        if(channelHandler != null)  {
+            channelHandler.remove();
+        }
     }
 
     // Called every tick while the player is focused on a particular portal
     // If newPortal is null, that means that there is no longer an active portal
-    public void setPortal(Portal newPortal)    {
+    // This is synchronized since the render workers lock on this object while rendering, so that renders for the old portal can't finish after the reset
+    public synchronized void setPortal(Portal newPortal)    {
         // Return if the portal stayed the same
         if(newPortal == lastActivePortal)   {return;}
 
@@ -61,10 +102,10 @@ public class PlayerData {
         if(pl.config.hidePortalBlocks)  {
             // If we're not in the same world as our last portal, there's no point recreating the portal blocks
             if(!changedWorlds && !lastActivePortal.isCustom())   {
-                lastActivePortal.recreatePortalBlocks(player);
+                lastActivePortal.recreatePortalBlocks(this);
             }
             if(newPortal != null && !newPortal.isCustom())  {
-                newPortal.removePortalBlocks(player);
+                newPortal.removePortalBlocks(this);
             }
         }
 
@@ -86,14 +127,20 @@ public class PlayerData {
 
     // Resets all of the ghost block updates that have been set to the player
     // This also has the effect of changing surroundingPortalBlockStates to be all null
-    public void resetSurroundingBlockStates(boolean sendPackets)   {
-        if(sendPackets && lastActivePortal != null) {
-            MultiBlockChangeManager changeManager = MultiBlockChangeManager.createInstance(player);
-            // Loop through all of the potential ghost blocks, and add to the change manager to change them back
-            for(BlockRaycastData data : lastActivePortal.getCurrentBlocks())   {
-                changeManager.addChange(data.getOriginVec(), data.getOriginData());
+    public synchronized void resetSurroundingBlockStates(boolean sendPackets)   {
+        // Any ghost blocks that haven't been sent yet are replaced by the reset, or are in another world
+        packetScheduler.clearDeferred();
+        ghostBlocks.clear();
+        if(sendPackets && lastActivePortal != null && lastActivePortal.getCurrentBlocks() != null) {
+            synchronized(blockChangeManager)    {
+                // Every block is being reset to how it is in the world, so whole sections can be sent straight from the world
+                blockChangeManager.enableWholeSections(Collections.emptyMap(), pl.config.wholeSectionThreshold);
+                // Loop through all of the potential ghost blocks, and add to the change manager to change them back
+                for(BlockRaycastData data : lastActivePortal.getCurrentBlocks())   {
+                    blockChangeManager.addChange(data.getOriginVec(), data.getOriginData());
+                }
+                blockChangeManager.sendChanges();
             }
-            changeManager.sendChanges();
         }
         surroundingPortalBlockStates = new HashMap<>();
     }
@@ -18,11 +18,14 @@ import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.block.BlockFace;
+import org.bukkit.entity.Player;
 import org.bukkit.event.Cancellable;
 import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.util.Vector;
 
+import io.netty.channel.Channel;
+
 public class ReflectUtils {
     private static String minecraftClassPath = null;
     private static String craftbukkitClassPath = null;
@@ -334,6 +337,18 @@ public class ReflectUtils {
         return vectorToBlockFace.get(direction);
     }
 
+    // Finds the NMS PlayerConnection of a player, used for sending packets
+    public static Object getPlayerConnection(Player player) {
+        Object craftPlayer = ReflectUtils.runMethod(player, "getHandle");
+        return ReflectUtils.getField(craftPlayer, "playerConnection");
+    }
+
+    // Finds the netty channel that the player's packets are sent and received on
+    public static Channel getPlayerChannel(Player player)   {
+        Object networkManager = ReflectUtils.getField(getPlayerConnection(player), "networkManager");
+        return (Channel) ReflectUtils.getField(networkManager, "channel");
+    }
+
     public static ItemStack addItemNBTTag(ItemStack item, String key, String value) {
         Class<?> craftItemStack = ReflectUtils.getBukkitClass("inventory.CraftItemStack");
         // Get the native minecraft version of the item stack
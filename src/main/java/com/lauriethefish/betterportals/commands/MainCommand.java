@@ -3,7 +3,10 @@ package com.lauriethefish.betterportals.commands;
 import com.lauriethefish.betterportals.BetterPortals;
 import com.lauriethefish.betterportals.Config;
 import com.lauriethefish.betterportals.PlayerData;
+import com.lauriethefish.betterportals.network.ConnectionMonitor;
+import com.lauriethefish.betterportals.network.PacketScheduler;
 import com.lauriethefish.betterportals.portal.Portal;
+import com.lauriethefish.betterportals.portal.PortalRenderSettings;
 import com.lauriethefish.betterportals.selection.PortalSelection;
 
 import org.bukkit.command.Command;
@@ -52,6 +55,24 @@ public class MainCommand implements CommandExecutor {
             return true;
         }
 
+        // Shows the portal quality level of each player, and the state of their connection
+        if(subcommand.equals("quality"))    {
+            if(!sender.hasPermission("betterportals.quality"))   {
+                sender.sendMessage(config.getErrorMessage("notEnoughPerms"));
+                return false;
+            }
+
+            sender.sendMessage(config.getChatMessage("qualityLevels"));
+            for(PlayerData playerData : pl.getPlayers())    {
+                ConnectionMonitor monitor = playerData.getConnectionMonitor();
+                PacketScheduler scheduler = playerData.getPacketScheduler();
+                sender.sendMessage(String.format("%s- %s: quality %d, ping %dms, backlog %d bytes, %d packets held back",
+                            ChatColor.GRAY, playerData.getPlayer().getName(), monitor.getQualityLevel(), monitor.getLastPing(),
+                            monitor.getLastBacklog(), scheduler.getQueueDepth()));
+            }
+            return true;
+        }
+
         if (!(sender instanceof Player)) {
             sender.sendMessage(config.getErrorMessage("mustBePlayer"));
             return false;
@@ -175,6 +196,37 @@ public class MainCommand implements CommandExecutor {
             return true;
         }
 
+        // Overrides one of the render settings of the closest portal, or resets it back to the value in the config
+        if(subcommand.equals("settings"))   {
+            if(!sender.hasPermission("betterportals.settings"))   {
+                sender.sendMessage(config.getErrorMessage("notEnoughPerms"));
+                return false;
+            }
+
+            Portal portal = pl.findClosestPortal(player.getLocation(), 20.0);
+            if(portal == null)  {
+                player.sendMessage(config.getErrorMessage("noPortalCloseEnough"));
+                return false;
+            }
+
+            // With no setting given, just show the current settings of the portal
+            if(args.length < 3)    {
+                player.sendMessage(config.getChatMessage("portalSettings") + portal.getRenderSettings());
+                return true;
+            }
+
+            String value = args[2].equalsIgnoreCase("reset") ? null : args[2];
+            try {
+                portal.setRenderSettings(portal.getRenderSettings().withOverride(config, args[1], value));
+            }   catch(IllegalArgumentException ex)  {
+                player.sendMessage(config.getErrorMessage("invalidSetting") + PortalRenderSettings.keys);
+                return false;
+            }
+
+            player.sendMessage(config.getChatMessage("settingChanged"));
+            return true;
+        }
+
         player.sendMessage(config.getErrorMessage("unknownCommand"));
         return false;
     }
@@ -189,5 +241,7 @@ public class MainCommand implements CommandExecutor {
         sender.sendMessage(ChatColor.GRAY + "- bp origin");
         sender.sendMessage(ChatColor.GRAY + "- bp destination");
         sender.sendMessage(ChatColor.GRAY + "- bp link [2 way] [invert]");
+        sender.sendMessage(ChatColor.GRAY + "- bp settings [setting] [value/reset]");
+        sender.sendMessage(ChatColor.GRAY + "- bp quality");
     }
 }
\ No newline at end of file
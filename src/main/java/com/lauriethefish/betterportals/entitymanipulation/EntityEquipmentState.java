@@ -1,45 +1,69 @@
 package com.lauriethefish.betterportals.entitymanipulation;
 
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
 import org.bukkit.inventory.EntityEquipment;
 import org.bukkit.inventory.ItemStack;
 
-// Stores the current configuration of an entities equipment
+// Stores the current configuration of an entities equipment, along with the NMS copy of each item used in equipment packets
 // We cannot store bukkit's EntityEquipment, since there is no clone method
 public class EntityEquipmentState {
-    private ItemStack mainHand;
-    private ItemStack offHand;
+    // The names of the NMS EnumItemSlot of each slot, in the order that the items are stored
+    public static final String[] SLOT_NAMES = new String[]{"MAINHAND", "OFFHAND", "FEET", "LEGS", "CHEST", "HEAD"};
 
-    private ItemStack helmet;
-    private ItemStack chestplate;
-    private ItemStack leggings;
-    private ItemStack boots;
+    private boolean hasEquipment = false;
+    private ItemStack[] items = new ItemStack[SLOT_NAMES.length];
+    private Object[] nmsItems = new Object[SLOT_NAMES.length];
 
     // Copies the items in the EntityEquipment into this class
-    public EntityEquipmentState(EntityEquipment equipment)   {
+    // The NMS copies of any items that are the same as in previous are reused, previous can be null
+    public EntityEquipmentState(EntityEquipment equipment, EntityEquipmentState previous)   {
         // Do not set any values if the equipment is null
         if(equipment == null)   {
             return;
         }
+        hasEquipment = true;
         
         // Load all the values from the entity equipment
-        this.mainHand = equipment.getItemInMainHand();
-        this.offHand = equipment.getItemInOffHand();
-        this.helmet = equipment.getHelmet();
-        this.chestplate = equipment.getChestplate();
-        this.leggings = equipment.getLeggings();
-        this.boots = equipment.getBoots();
+        items[0] = equipment.getItemInMainHand();
+        items[1] = equipment.getItemInOffHand();
+        items[2] = equipment.getBoots();
+        items[3] = equipment.getLeggings();
+        items[4] = equipment.getChestplate();
+        items[5] = equipment.getHelmet();
+
+        for(int slot = 0; slot < items.length; slot++)  {
+            if(previous != null && previous.hasEquipment && compareItemStacks(previous.items[slot], items[slot]))  {
+                nmsItems[slot] = previous.nmsItems[slot];
+            }   else    {
+                nmsItems[slot] = PacketAccessors.asNMSCopy.invoke(null, items[slot]);
+            }
+        }
+    }
+
+    // Not all living entities can equip armor
+    public boolean hasEquipment()   {
+        return hasEquipment;
     }
 
     // Compares each item of the equipment with another, checks for null values
     public boolean equals(EntityEquipmentState other)    {
         if(other == null)   {return false;}
         
-        return compareItemStacks(other.mainHand, mainHand) &&
-        compareItemStacks(other.offHand, offHand) &&
-        compareItemStacks(other.helmet, helmet) &&
-        compareItemStacks(other.chestplate, chestplate) &&
-        compareItemStacks(other.leggings, leggings) &&
-        compareItemStacks(other.boots, boots);
+        for(int slot = 0; slot < items.length; slot++)  {
+            if(!slotEquals(other, slot))    {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean slotEquals(EntityEquipmentState other, int slot)    {
+        return compareItemStacks(other.items[slot], items[slot]);
+    }
+
+    public Object getNmsItem(int slot)  {
+        return nmsItems[slot];
     }
 
     // Deals with null checking when comparing two ItemStacks
@@ -50,4 +74,4 @@ public class EntityEquipmentState {
             return a.equals(b);
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,5 @@
 package com.lauriethefish.betterportals.entitymanipulation;
 
-import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -9,13 +8,21 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.lauriethefish.betterportals.BetterPortals;
 import com.lauriethefish.betterportals.PlayerData;
 import com.lauriethefish.betterportals.ReflectUtils;
 import com.lauriethefish.betterportals.math.MathUtils;
+import com.lauriethefish.betterportals.network.DirectPacketWriter;
+import com.lauriethefish.betterportals.network.EntityPacketFilter;
+import com.lauriethefish.betterportals.network.PacketPriority;
+import com.lauriethefish.betterportals.network.PacketScheduler;
 import com.lauriethefish.betterportals.portal.Portal;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+import com.lauriethefish.betterportals.reflection.PacketType;
 
+import org.bukkit.Location;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.ExperienceOrb;
@@ -25,37 +32,50 @@ import org.bukkit.entity.Item;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Painting;
 import org.bukkit.entity.Player;
-import org.bukkit.inventory.EntityEquipment;
-import org.bukkit.inventory.ItemStack;
 import org.bukkit.metadata.MetadataValue;
 import org.bukkit.util.Vector;
 
+import lombok.Getter;
+
 public class EntityManipulator    {
     private Random random;
-    private Object playerConnection; // Store the NMS connection update to increase speed of sending packets
+    private PacketScheduler scheduler;
+    private ViewerIndex viewerIndex;
+    private DirectPacketWriter directWriter; // Writes the most common packets straight to the channel, null if this isn't supported
 
     // Set of all hidden entities
     // A set is used here, since we don't need to preserve order and O(1) is fun
     private Set<Entity> hiddenEntities = new HashSet<Entity>();
+    // The number of ticks that each hidden entity has been out of view, for those waiting for the grace period to end before being shown
+    private Map<Entity, Integer> hiddenTicksOutOfView = new HashMap<>();
+    // How many ticks an entity must be out of view before it is shown again, or before its fake entity is removed
+    private int visibilityGraceTicks;
+    // The IDs of hidden entities that were made invisible instead of destroyed, the channel handler stops the server's packets for these
+    @Getter private Set<Integer> filteredEntityIds = ConcurrentHashMap.newKeySet();
 
     // All of the fake entities that the player can currently see
     private Map<Entity, ViewableEntity> replicatedEntites = new HashMap<Entity, ViewableEntity>();
 
+    // The IDs of entities to destroy, these are sent in one packet by sendDestroyPackets
+    private List<Integer> pendingDestroys = new ArrayList<>();
+
+    // The packets that will be sent together when endGroup is called, or null if packets are being sent straight away
+    private List<Object> packetGroup = null;
+
     public EntityManipulator(BetterPortals pl, PlayerData playerData)    {
         Player player = playerData.getPlayer();
 
         random = new Random(player.getEntityId());
-        // Find the NMS connection using reflection
-        Object craftPlayer = ReflectUtils.runMethod(player, "getHandle");
-        playerConnection = ReflectUtils.getField(craftPlayer, "playerConnection");
+        scheduler = playerData.getPacketScheduler();
+        viewerIndex = pl.getViewerIndex();
+        visibilityGraceTicks = pl.config.entityVisibilityGraceTicks;
+        directWriter = DirectPacketWriter.forPlayer(player);
     }
 
     // Sends a PacketPlayOutCollect to play the animation of entity picking up item
     public void sendPickupItemPacket(ViewableEntity entity, ViewableEntity item)  {
-        Object packet = ReflectUtils.newInstance("PacketPlayOutCollect");
-        ReflectUtils.setField(packet, "a", item.getEntityId());
-        ReflectUtils.setField(packet, "b", entity.getEntityId());
-        ReflectUtils.setField(packet, "c", ((Item) item.getEntity()).getItemStack().getAmount());
+        Object packet = PacketAccessors.collect.create();
+        PacketAccessors.collect.setFields(packet, item.getEntityId(), entity.getEntityId(), ((Item) item.getEntity()).getItemStack().getAmount());
         sendPacket(packet);
     }
 
@@ -63,24 +83,39 @@ public class EntityManipulator    {
     // hides any entities now in the list, recreates any removed from the list
     // and leaves already hidden entities how they are
     public void swapHiddenEntities(Set<Entity> newHiddenEntites)   {
+        swapHiddenEntities(newHiddenEntites, visibilityGraceTicks);
+    }
+
+    // Entities removed from the list are only recreated once they have been out of view for more than graceTicks
+    // Until then, they are added to newHiddenEntities so that they stay hidden
+    private void swapHiddenEntities(Set<Entity> newHiddenEntites, int graceTicks)   {
         for(Entity entity : newHiddenEntites)    {
             // If the entity is already hidden, and should remain hidden,
             // remove it from the current array and do not hide or show it
             if(hiddenEntities.contains(entity))   {
                 hiddenEntities.remove(entity);
+                hiddenTicksOutOfView.remove(entity);
                 continue;
             }
 
             // If the entity was shown previously, and should now be hidden, hide it
             if(!hiddenEntities.contains(entity))  {
-                hideEntity(entity.getEntityId());
+                hideOriginEntity(entity);
             }
         }
 
         // Show the entities corresponding to the entries in the current array,
         // since these are the entities that should not stay hidden
         for(Entity entity : hiddenEntities)  {
-            showEntity(entity, null, null, entity.getEntityId());
+            // Entities walking along the edge of the view would otherwise be shown and hidden again every few ticks
+            int ticksOutOfView = hiddenTicksOutOfView.merge(entity, 1, Integer::sum);
+            if(ticksOutOfView <= graceTicks && entity.isValid())  {
+                newHiddenEntites.add(entity);
+                continue;
+            }
+
+            hiddenTicksOutOfView.remove(entity);
+            showOriginEntity(entity);
         }
 
         hiddenEntities = newHiddenEntites; // Update the array
@@ -89,27 +124,31 @@ public class EntityManipulator    {
     // Removes all replicated entities and shows any hidden entities
     public void resetAll(boolean sendPackets)  {
         if(sendPackets)    {
-            swapHiddenEntities(new HashSet<>());
-            swapReplicatedEntities(new HashSet<>(), null);
+            swapHiddenEntities(new HashSet<>(), 0);
+            swapReplicatedEntities(new HashSet<>(), null, 0);
         }   else    {
             hiddenEntities = new HashSet<>();
+            hiddenTicksOutOfView.clear();
+            filteredEntityIds.clear();
+            pendingDestroys.clear();
+            for(ViewableEntity viewed : replicatedEntites.values()) {
+                viewerIndex.remove(viewed);
+            }
             replicatedEntites = new HashMap<>();
         }
     }
 
     // Sends a PacketPlayOutAnimation to the player for the given entity
     public void sendAnimationPacket(ViewableEntity entity, int animationType) {
-        Object packet = ReflectUtils.newInstance("PacketPlayOutAnimation");
-        ReflectUtils.setField(packet, "a", entity.getEntityId());
-        ReflectUtils.setField(packet, "b", animationType);
+        Object packet = PacketAccessors.animation.create();
+        PacketAccessors.animation.setFields(packet, entity.getEntityId(), animationType);
         sendPacket(packet);
     }
 
     // Sends a PacketPlayOutMount to show to the player that the entities in mountedIds are riding the entity entityId
     public void sendMountPacket(int entityId, int[] mountedIds)  {
-        Object packet = ReflectUtils.newInstance("PacketPlayOutMount");
-        ReflectUtils.setField(packet, "a", entityId);
-        ReflectUtils.setField(packet, "b", mountedIds);
+        Object packet = PacketAccessors.mount.create();
+        PacketAccessors.mount.setFields(packet, entityId, mountedIds);
         sendPacket(packet);
     }
 
@@ -119,6 +158,11 @@ public class EntityManipulator    {
 
     // Swaps the list of fake entities with the new one, adding or removing any new entities
     public void swapReplicatedEntities(Set<Entity> newReplicatedEntities, Portal portal)  {
+        swapReplicatedEntities(newReplicatedEntities, portal, visibilityGraceTicks);
+    }
+
+    // Fake entities are only removed once they have been out of view for more than graceTicks
+    private void swapReplicatedEntities(Set<Entity> newReplicatedEntities, Portal portal, int graceTicks)  {
         // Loop through all of the existing fake entities and remove any that will no longer be visible to the player
         Iterator<ViewableEntity> removingIterator = replicatedEntites.values().iterator();
         while(removingIterator.hasNext())   {
@@ -126,10 +170,20 @@ public class EntityManipulator    {
             ViewableEntity playerEntity = removingIterator.next();
             Entity entity = playerEntity.getEntity();
 
+            boolean inView = newReplicatedEntities.contains(entity);
+            if(inView)  {
+                playerEntity.setTicksOutOfView(0);
+            }   else    {
+                playerEntity.setTicksOutOfView(playerEntity.getTicksOutOfView() + 1);
+            }
+            // Entities that are dead or have changed world are removed straight away, since they won't come back into view
+            boolean gone = !entity.isValid() || entity.getWorld() != playerEntity.getPortal().getDestPos().getWorld();
+
             // If an entity is now vanished, or is no longer shown, hide it
-            if(!newReplicatedEntities.contains(entity) || isVanished(entity))   {
+            if((!inView && (gone || playerEntity.getTicksOutOfView() > graceTicks)) || isVanished(entity))   {
                 // If not, send an entity destroy packet, then remove the entity
                 hideEntity(playerEntity.getEntityId());
+                viewerIndex.remove(playerEntity);
                 removingIterator.remove();
             }
         }
@@ -147,8 +201,12 @@ public class EntityManipulator    {
                 ViewableEntity newEntity = new ViewableEntity(this, entity, portal, random);
                 showEntity(entity, newEntity.getLocation(), newEntity.getRotation(), newEntity.getEntityId());
                 replicatedEntites.put(entity, newEntity); // Add the entity to the list
+                viewerIndex.add(newEntity);
             }
         }
+
+        // This is called after swapHiddenEntities each tick, so the entities hidden by both are destroyed together
+        sendDestroyPackets();
     }
 
     // Checks if an entity is vanished, this code works with most vanish plugins
@@ -165,21 +223,75 @@ public class EntityManipulator    {
     // Hides the given entity, adding it to the set
     public void addHiddenEntity(Entity entity)  {
         hiddenEntities.add(entity);
-        hideEntity(entity.getEntityId());
+        hideOriginEntity(entity);
+        sendDestroyPackets();
     }
 
-    // Sends a packet to hide the entity with the given ID
+    // Hides a real entity, by making it invisible and filtering its packets if possible, otherwise by destroying it
+    private void hideOriginEntity(Entity entity)   {
+        int entityId = entity.getEntityId();
+        if(EntityPacketFilter.canHide(entity))  {
+            // The packet is sent before the ID is filtered, so that the server's packets stop after the entity is invisible
+            sendPacket(EntityPacketFilter.createInvisibleMetadata(PacketAccessors.getHandle(entity), entityId));
+            filteredEntityIds.add(entityId);
+        }   else    {
+            hideEntity(entityId);
+        }
+    }
+
+    // Shows a real entity that was hidden by hideOriginEntity
+    private void showOriginEntity(Entity entity)   {
+        int entityId = entity.getEntityId();
+        if(!filteredEntityIds.remove(entityId))  {
+            showEntity(entity, null, null, entityId);
+            return;
+        }
+
+        // The entity is still spawned, so it only needs to be moved to where it is now and given its real metadata and equipment
+        if(entity.isDead()) {return;}
+        Object nmsEntity = PacketAccessors.getHandle(entity);
+        Location location = entity.getLocation();
+        startGroup();
+        sendTeleportPacket(entityId, location.toVector(), (byte) (location.getYaw() * 256 / 360), (byte) (location.getPitch() * 256 / 360));
+        sendHeadRotationPacket(entityId, (byte) ((float) PacketAccessors.getHeadRotation.invoke(nmsEntity) * 256 / 360));
+        sendMetadataPacket(nmsEntity, entityId);
+        sendEntityEquipmentPackets((LivingEntity) entity, entityId);
+        endGroup();
+    }
+
+    // Hides the entity with the given ID, the packet is sent by the next call to sendDestroyPackets
     private void hideEntity(int entityId)   {
-        Object idArray = Array.newInstance(int.class, 1);
-        Array.set(idArray, 0, entityId);
+        pendingDestroys.add(entityId);
+    }
 
-        Object packet = ReflectUtils.newInstance("PacketPlayOutEntityDestroy", new Class[]{}, new Object[]{});
-        ReflectUtils.setField(packet, "a", idArray);
-        sendPacket(packet);
+    // Sends one packet destroying all of the entities hidden since the last call
+    private void sendDestroyPackets()   {
+        if(pendingDestroys.isEmpty())   {return;}
+
+        int[] entityIds = new int[pendingDestroys.size()];
+        for(int i = 0; i < entityIds.length; i++)   {
+            entityIds[i] = pendingDestroys.get(i);
+        }
+
+        if(directWriter != null)    {
+            sendPacket(directWriter.encodeEntityDestroy(entityIds));
+        }   else    {
+            Object packet = PacketAccessors.entityDestroy.create();
+            PacketAccessors.entityDestroy.setFields(packet, (Object) entityIds);
+            sendPacket(packet);
+        }
+        pendingDestroys.clear();
     }
     
+    // Makes a spawn packet for the entity, then sets the entity ID and location
+    private Object createSpawnPacket(PacketType type, Object nmsEntity, int entityId, Vector location)    {
+        Object packet = type.create(nmsEntity);
+        type.setFields(packet, entityId, location.getX(), location.getY(), location.getZ());
+        return packet;
+    }
+
     // Sets the location in a spawn packet, using the field names given
-    // This is used because different types of spawn packet have different field names for the coordinates
+    // This is only used before 1.14, since the spawn packets made by EntityTrackerEntry can be of different types
     private void setSpawnLocation(Object packet, Vector location, String xName, String yName, String zName)  {
         ReflectUtils.setField(packet, xName, location.getX());
         ReflectUtils.setField(packet, yName, location.getY());
@@ -199,7 +311,7 @@ public class EntityManipulator    {
         // For entities like item frames and paintings, we get the coordinates using a BlockPosition
         // This is because the normal entity coordinates are not accurate for spawn packets
         if(entity instanceof Hanging)   {
-            Object blockPosition = ReflectUtils.getField(nmsEntity, "blockPosition");
+            Object blockPosition = PacketAccessors.hangingPosition.get(nmsEntity);
             return MathUtils.moveToCenterOfBlock(ReflectUtils.blockPositionToVector(blockPosition));
         }   else    {
             return entity.getLocation().toVector();
@@ -209,7 +321,9 @@ public class EntityManipulator    {
     // Sends all of the packets necessary to spawn a fake entity, or respawn a real one after it was removed
     private void showEntity(Entity entity, Vector locationOverride, Vector directionOverride, int entityId)   {
         if(entity.isDead()) {return;}
-        Object nmsEntity = ReflectUtils.runMethod(entity, "getHandle");
+        Object nmsEntity = PacketAccessors.getHandle(entity);
+        // The client should never see the entity without its metadata and equipment
+        startGroup();
 
         // Use either the entities location, or the override
         Vector location = locationOverride == null ? getEntityPosition(entity, nmsEntity) : locationOverride;
@@ -218,36 +332,27 @@ public class EntityManipulator    {
         // Create the correct type of spawn packet, depending on the entity
         Object spawnPacket;
         if(entity instanceof Painting)  {
-            spawnPacket = ReflectUtils.newInstance("PacketPlayOutSpawnEntityPainting", new Class[]{ReflectUtils.getMcClass("EntityPainting")}, new Object[]{nmsEntity});
-            
             // Painting spawn packets are slightly different, as they use a BlockPosition and EnumDirection
-            Object blockPosition = ReflectUtils.newInstance("BlockPosition", new Class[]{int.class, int.class, int.class},
-                                                            new Object[]{location.getBlockX(), location.getBlockY(), location.getBlockZ()});
-            ReflectUtils.setField(spawnPacket, "c", blockPosition);
-
-            Object enumDirection = ReflectUtils.getEnumDirection(direction);
-            ReflectUtils.setField(spawnPacket, "d", enumDirection);
+            spawnPacket = PacketAccessors.spawnPainting.create(nmsEntity);
+            Object blockPosition = PacketAccessors.blockPosition.newInstance(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+            PacketAccessors.spawnPainting.setFields(spawnPacket, entityId, blockPosition, ReflectUtils.getEnumDirection(direction));
         }   else if(entity instanceof ExperienceOrb)    {
-            spawnPacket = ReflectUtils.newInstance("PacketPlayOutSpawnEntityExperienceOrb", new Class[]{ReflectUtils.getMcClass("EntityExperienceOrb")}, new Object[]{nmsEntity});
-            setSpawnLocation(spawnPacket, location, "b", "c", "d");
+            spawnPacket = createSpawnPacket(PacketAccessors.spawnExperienceOrb, nmsEntity, entityId, location);
         }   else if(entity instanceof HumanEntity)  {
-            spawnPacket = ReflectUtils.newInstance("PacketPlayOutNamedEntitySpawn", new Class[]{ReflectUtils.getMcClass("EntityHuman")}, new Object[]{nmsEntity});
-            setSpawnLocation(spawnPacket, location, "c", "d", "e");
+            spawnPacket = createSpawnPacket(PacketAccessors.spawnNamedEntity, nmsEntity, entityId, location);
         }   else if(entity instanceof LivingEntity) {
-            spawnPacket = ReflectUtils.newInstance("PacketPlayOutSpawnEntityLiving", new Class[]{ReflectUtils.getMcClass("EntityLiving")}, new Object[]{nmsEntity});
-            setSpawnLocation(spawnPacket, location, "d", "e", "f");
+            spawnPacket = createSpawnPacket(PacketAccessors.spawnLiving, nmsEntity, entityId, location);
         }   else    {
             // If we are on 1.14 and up, the contructor for PacketPlayOutSpawnEntity can find all the entity type stuff for us
             // Otherwise, we use a function that gets EntityTrackerEntry to do everything
             if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
-                spawnPacket = ReflectUtils.newInstance("PacketPlayOutSpawnEntity", new Class[]{ReflectUtils.getMcClass("Entity")}, new Object[]{nmsEntity});
+                spawnPacket = createSpawnPacket(PacketAccessors.spawnEntity, nmsEntity, entityId, location);
             }   else    {
                 spawnPacket = generateEntitySpawnPacket_Old(nmsEntity);
+                setSpawnLocation(spawnPacket, location, "c", "d", "e");
+                ReflectUtils.setField(spawnPacket, "a", entityId);
             }
-            setSpawnLocation(spawnPacket, location, "c", "d", "e");
         }
-
-        ReflectUtils.setField(spawnPacket, "a", entityId);
         sendPacket(spawnPacket);
 
         // Force the entity to update its data, since it just spawned
@@ -257,16 +362,21 @@ public class EntityManipulator    {
         if(entity instanceof LivingEntity)   {
             sendEntityEquipmentPackets((LivingEntity) entity, entityId);
         }
+        endGroup();
     }
 
     // Sends a PacketPlayOutEntityMetadata to update the entities data, if necessary
     public void sendMetadataPacket(Object nmsEntity, int entityId) {
         // The NMS DataWatcher deals with checking an entity for data changes, we use it to send the metadata packet
-        Object dataWatcher = ReflectUtils.getField(nmsEntity, "datawatcher");
-        Object dataPacket = ReflectUtils.newInstance("PacketPlayOutEntityMetadata", new Class[]{int.class, dataWatcher.getClass(), boolean.class},
-                                                                                    new Object[]{entityId, dataWatcher, true});
-        sendPacket(dataPacket);
-        
+        Object dataWatcher = PacketAccessors.dataWatcher.get(nmsEntity);
+        sendPacket(PacketAccessors.metadata.create(entityId, dataWatcher, true));
+    }
+
+    // Sends a PacketPlayOutEntityMetadata containing only the given DataWatcher items
+    public void sendMetadataChanges(int entityId, List<Object> items)  {
+        Object packet = PacketAccessors.metadataChanges.create();
+        PacketAccessors.metadataChanges.setFields(packet, entityId, items);
+        sendPacket(packet);
     }
 
     public void sendMovePacket(int entityId, Vector offset)    {
@@ -275,14 +385,12 @@ public class EntityManipulator    {
         short z = (short) (offset.getZ() * 4096);
 
         // In newer versions, a short is used for relative move packets, but in 1.13 and under, a long is used
-        if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
-            sendPacket(ReflectUtils.newInstance("PacketPlayOutEntity$PacketPlayOutRelEntityMove", 
-                        new Class[]{int.class, short.class, short.class, short.class, boolean.class},
-                        new Object[]{entityId, x, y, z, true}));
+        if(directWriter != null)    {
+            sendPacket(directWriter.encodeRelativeMove(entityId, x, y, z));
+        }   else if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
+            sendPacket(PacketAccessors.relativeMove.create(entityId, x, y, z, true));
         }   else    {
-            sendPacket(ReflectUtils.newInstance("PacketPlayOutEntity$PacketPlayOutRelEntityMove", 
-                        new Class[]{int.class, long.class, long.class, long.class, boolean.class},
-                        new Object[]{entityId, (long) x, (long) y, (long) z, true}));
+            sendPacket(PacketAccessors.relativeMove.create(entityId, (long) x, (long) y, (long) z, true));
         }
     }
 
@@ -298,36 +406,33 @@ public class EntityManipulator    {
         short z = (short) (offset.getZ() * 4096);
 
         // In newer versions, a short is used for relative move packets, but in 1.13 and under, a long is used
-        if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
-            sendPacket(ReflectUtils.newInstance("PacketPlayOutEntity$PacketPlayOutRelEntityMoveLook", 
-                        new Class[]{int.class, short.class, short.class, short.class, byte.class, byte.class, boolean.class},
-                        new Object[]{entityId, x, y, z, yaw, pitch, true}));
+        if(directWriter != null)    {
+            sendPacket(directWriter.encodeRelativeMoveLook(entityId, x, y, z, yaw, pitch));
+        }   else if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
+            sendPacket(PacketAccessors.relativeMoveLook.create(entityId, x, y, z, yaw, pitch, true));
         }   else    {
-            sendPacket(ReflectUtils.newInstance("PacketPlayOutEntity$PacketPlayOutRelEntityMoveLook", 
-                        new Class[]{int.class, long.class, long.class, long.class, byte.class, byte.class, boolean.class},
-                        new Object[]{entityId, (long) x, (long) y, (long) z, yaw, pitch, true}));
+            sendPacket(PacketAccessors.relativeMoveLook.create(entityId, (long) x, (long) y, (long) z, yaw, pitch, true));
         }
     }
 
     public void sendTeleportPacket(int entityId, Vector destination, byte yaw, byte pitch)    {
         // Make a teleport packet
-        Object packet = ReflectUtils.newInstance("PacketPlayOutEntityTeleport");
-        ReflectUtils.setField(packet, "a", entityId);
+        Object packet = PacketAccessors.teleport.create();
 
         // Set the teleport location to the position of the entity on the player's side of the portal
-        ReflectUtils.setField(packet, "b", destination.getX());
-        ReflectUtils.setField(packet, "c", destination.getY());
-        ReflectUtils.setField(packet, "d", destination.getZ());
-        ReflectUtils.setField(packet, "e", yaw);
-        ReflectUtils.setField(packet, "f", pitch);
+        PacketAccessors.teleport.setFields(packet, entityId, destination.getX(), destination.getY(), destination.getZ(), yaw, pitch);
 
         sendPacket(packet);
     }
 
     public void sendHeadRotationPacket(int entityId, byte headRotation)    {
-        Object packet = ReflectUtils.newInstance("PacketPlayOutEntityHeadRotation");
-        ReflectUtils.setField(packet, "a", entityId); // Set the overridden entityId
-        ReflectUtils.setField(packet, "b", headRotation); // Use the randomized entity ID of fake entities
+        if(directWriter != null)    {
+            sendPacket(directWriter.encodeHeadRotation(entityId, headRotation));
+            return;
+        }
+
+        Object packet = PacketAccessors.headRotation.create();
+        PacketAccessors.headRotation.setFields(packet, entityId, headRotation); // Use the randomized entity ID of fake entities
 
         sendPacket(packet);
     }
@@ -335,100 +440,100 @@ public class EntityManipulator    {
     // Sends the two packets that rotate an entities head
     public void sendLookPacket(int entityId, byte yaw, byte pitch)   {
         // Send both the head rotation and look packets
-        sendPacket(ReflectUtils.newInstance("PacketPlayOutEntity$PacketPlayOutEntityLook", 
-                                            new Class[]{int.class, byte.class, byte.class, boolean.class},
-                                            new Object[]{entityId, yaw, pitch, true}));                                  
+        if(directWriter != null)    {
+            sendPacket(directWriter.encodeLook(entityId, yaw, pitch));
+        }   else    {
+            sendPacket(PacketAccessors.look.create(entityId, yaw, pitch, true));
+        }
     }
 
     public void sendSleepPacket(Object nmsEntity, int entityId)   {
-        Object packet = ReflectUtils.newInstance("PacketPlayOutBed");
-        Object blockPosition = ReflectUtils.getField(nmsEntity, "bedPosition");
+        Object packet = PacketAccessors.bed.create();
+        Object blockPosition = PacketAccessors.bedPosition.get(nmsEntity);
 
-        ReflectUtils.setField(packet, "a", entityId);
-        ReflectUtils.setField(packet, "b", blockPosition);
+        PacketAccessors.bed.setFields(packet, entityId, blockPosition);
         sendPacket(packet);
     }
 
     public void sendBlockBreakPacket(ViewableEntity entity, Block block)  {
-        Object packet = ReflectUtils.newInstance("PacketPlayOutBlockBreakAnimation", 
-                                                new Class[]{int.class, ReflectUtils.getMcClass("BlockPosition"), int.class},
-                                                new Object[]{entity.getEntityId(), ReflectUtils.createBlockPosition(block.getLocation()), 0});
-        sendPacket(packet);
+        Object blockPosition = PacketAccessors.blockPosition.newInstance(block.getX(), block.getY(), block.getZ());
+        sendPacket(PacketAccessors.blockBreakAnimation.create(entity.getEntityId(), blockPosition, 0));
     }
 
     // Loops through all the fake entities and updates their position and equipment
     public void updateFakeEntities()   {      
         for(ViewableEntity playerEntity : replicatedEntites.values()) {
+            startGroup();
             playerEntity.update();
+            endGroup();
         }
     }
 
     // Generates and sends an entity equipment packet the old way (i.e. 1 pakcet per slot)
-    private void sendEquipmentPackets_Old(int entityId, Map<String, ItemStack> newItems) {   
-        // For each of the new items, make a packet and send it  
-        for(Map.Entry<String, ItemStack> entry : newItems.entrySet())   {   
-            Object packet = ReflectUtils.newInstance("PacketPlayOutEntityEquipment");
+    private void sendEquipmentPackets_Old(int entityId, EntityEquipmentState equipment, EntityEquipmentState previous) {
+        // For each of the changed items, make a packet and send it
+        for(int slot = 0; slot < EntityEquipmentState.SLOT_NAMES.length; slot++)  {
+            if(previous != null && equipment.slotEquals(previous, slot))    {continue;}
+
+            Object packet = PacketAccessors.equipment.create();
             // Set the entity ID, slot and item
-            ReflectUtils.setField(packet, "a", entityId);
-            ReflectUtils.setField(packet, "b", getNMSItemSlot(entry.getKey()));
-            ReflectUtils.setField(packet, "c", getNMSItemStack(entry.getValue()));
+            PacketAccessors.equipment.setFields(packet, entityId, PacketAccessors.itemSlots[slot], equipment.getNmsItem(slot));
             sendPacket(packet);
         }
     }
 
     // Generates and sends an equipment packet the new way, i.e. all in a list at once
-    private void sendEquipmentPacket_New(int entityId, Map<String, ItemStack> newItems) {
-        Class<?> pairClass = ReflectUtils.getClass("com.mojang.datafixers.util.Pair");
-
+    private void sendEquipmentPacket_New(int entityId, EntityEquipmentState equipment, EntityEquipmentState previous) {
         List<Object> list = new ArrayList<>();
-        for(Map.Entry<String, ItemStack> entry : newItems.entrySet())   {
+        for(int slot = 0; slot < EntityEquipmentState.SLOT_NAMES.length; slot++)  {
+            if(previous != null && equipment.slotEquals(previous, slot))    {continue;}
+
             // Make the minecraft pair object and add it to the list
-            Object pair = ReflectUtils.newInstance(pairClass,   new Class[]{Object.class, Object.class},
-                                                                new Object[]{getNMSItemSlot(entry.getKey()), getNMSItemStack(entry.getValue())});
-            list.add(pair);
+            list.add(PacketAccessors.pair.newInstance(PacketAccessors.itemSlots[slot], equipment.getNmsItem(slot)));
         }
+        if(list.isEmpty())  {return;}
     
-        Object packet = ReflectUtils.newInstance("PacketPlayOutEntityEquipment");
+        Object packet = PacketAccessors.equipment.create();
         // In the new implementation, all items are sent in a list
-        ReflectUtils.setField(packet, "a", entityId);
-        ReflectUtils.setField(packet, "b", list);
+        PacketAccessors.equipment.setFields(packet, entityId, list);
         sendPacket(packet);
     }
 
-    private Object getNMSItemSlot(String slot)  {
-        return ReflectUtils.runMethod(null, ReflectUtils.getMcClass("EnumItemSlot"), "valueOf", new Class[]{String.class}, new Object[]{slot});
+    // Sends the entity equipment packets required to set the items in all of the entities armor slots and hands
+    public void sendEntityEquipmentPackets(LivingEntity entity, int entityId)    {
+        sendEntityEquipmentPackets(entityId, new EntityEquipmentState(entity.getEquipment(), null), null);
     }
 
-    private Object getNMSItemStack(ItemStack item)  {
-        return ReflectUtils.runMethod(null, ReflectUtils.getBukkitClass("inventory.CraftItemStack"), "asNMSCopy", new Class[]{ItemStack.class}, new Object[]{item});
-    }
+    // Sends only the slots that are different in equipment to previous, or all of them if previous is null
+    public void sendEntityEquipmentPackets(int entityId, EntityEquipmentState equipment, EntityEquipmentState previous)  {
+        // Not all living entities can equip armor
+        if(!equipment.hasEquipment())   {return;}
 
-    // Sends the 6 entity equipment packets required to change the items in the
-    // entities armor slots and hands
-    public void sendEntityEquipmentPackets(LivingEntity entity, int entityId)    {
-        EntityEquipment equipment = entity.getEquipment(); // Get all of the equipment slots from the entity
-        if(equipment == null)   { // Null check for the equipment, since not all living entities can equip armor
-            return;
-        }
-
-        // Add each item to the map
-        Map<String, ItemStack> newItems = new HashMap<>();
-        newItems.put("MAINHAND", equipment.getItemInMainHand());
-        newItems.put("OFFHAND", equipment.getItemInOffHand());
-        newItems.put("FEET", equipment.getBoots());
-        newItems.put("LEGS", equipment.getLeggings());
-        newItems.put("CHEST", equipment.getChestplate());
-        newItems.put("HEAD", equipment.getHelmet());
         // Use the correct implementation
         if(ReflectUtils.useNewEntityEquipmentImpl)  {
-            sendEquipmentPacket_New(entityId, newItems);
+            sendEquipmentPacket_New(entityId, equipment, previous);
         }   else    {
-            sendEquipmentPackets_Old(entityId, newItems);
+            sendEquipmentPackets_Old(entityId, equipment, previous);
         }
+    }
 
+    // Collects the packets sent until endGroup is called, so that they are sent together
+    private void startGroup()   {
+        packetGroup = new ArrayList<>();
     }
 
+    private void endGroup() {
+        List<Object> packets = packetGroup;
+        packetGroup = null;
+        scheduler.sendGroup(packets);
+    }
+
+    // Entity packets are always high priority, since they must arrive in order, for instance a spawn before a destroy
     private void sendPacket(Object packet)  {
-        ReflectUtils.runMethod(playerConnection, "sendPacket", new Class[]{ReflectUtils.getMcClass("Packet")}, new Object[]{packet});
+        if(packetGroup != null) {
+            packetGroup.add(packet);
+        }   else    {
+            scheduler.send(packet, PacketPriority.HIGH);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+package com.lauriethefish.betterportals.entitymanipulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.lauriethefish.betterportals.portal.Portal;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.HumanEntity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.util.Vector;
+
+import lombok.Getter;
+
+// Stores how an entity at the destination of a portal should appear at the origin
+// This is calculated at most once per tick, and shared by every player viewing the entity through the portal
+// Each ViewableEntity compares this with what it last sent to its player, so that only the changes are sent
+@Getter
+public class ReplicatedEntityState {
+    // The last value of one item in the entity's DataWatcher, and the tick it last changed on
+    private static class TrackedMetadata {
+        public Object item;
+        public Object value;
+        public int changedTick;
+    }
+
+    private Entity entity;
+    private Object nmsEntity;
+    private Portal portal;
+    private int lastUpdated;
+    private boolean updated = false;
+
+    private Vector location;
+    private Vector rotation;
+    private byte byteYaw;
+    private byte bytePitch;
+    private byte byteHeadRotation;
+    // This stays the same instance while the equipment doesn't change, so viewers can check if it changed without comparing items
+    private EntityEquipmentState equipment;
+    private boolean sleeping;
+    private List<Entity> passengers;
+    // The entity's metadata by index, used to send only the items that have changed
+    private Map<Integer, TrackedMetadata> metadata = new HashMap<>();
+
+    public ReplicatedEntityState(Portal portal, Entity entity)  {
+        this.portal = portal;
+        this.entity = entity;
+        this.nmsEntity = PacketAccessors.getHandle(entity);
+    }
+
+    // Recalculates the state, unless it has already been calculated this tick
+    public void update(int currentTick) {
+        if(updated && currentTick == lastUpdated)   {return;}
+        updated = true;
+        lastUpdated = currentTick;
+
+        Location entityLocation = entity.getLocation();
+        location = portal.moveDestinationToOrigin(EntityManipulator.getEntityPosition(entity, nmsEntity));
+        rotation = portal.rotateToOrigin(entityLocation.getDirection());
+
+        // Dummy location to get the pitch and yaw more easily
+        Location loc = entityLocation.clone();
+        loc.setDirection(rotation);
+        byteYaw = (byte) (loc.getYaw() * 256 / 360);
+        bytePitch = (byte) (loc.getPitch() * 256 / 360);
+
+        // Use the methods in Location to easily convert the head rotation to a vector and back again
+        loc = entityLocation.clone();
+        loc.setYaw((float) PacketAccessors.getHeadRotation.invoke(nmsEntity));
+        loc.setDirection(portal.rotateToOrigin(loc.getDirection()));
+        byteHeadRotation = (byte) (loc.getYaw() * 256 / 360);
+
+        // Only LivingEntities have equipment
+        if(entity instanceof LivingEntity)  {
+            EntityEquipmentState newEquipment = new EntityEquipmentState(((LivingEntity) entity).getEquipment(), equipment);
+            if(!newEquipment.equals(equipment)) {
+                equipment = newEquipment;
+            }
+        }
+
+        sleeping = entity instanceof HumanEntity && ((HumanEntity) entity).isSleeping();
+        passengers = entity.getPassengers();
+
+        if(PacketAccessors.metadataDiffing) {
+            updateMetadata();
+        }
+    }
+
+    // Finds which items in the entity's metadata have changed since the last update
+    // The server's DataWatcher dirty flags can't be used for this, since the server clears them when it sends its own metadata packets
+    private void updateMetadata()   {
+        // Make a packet containing all of the metadata, once per tick rather than once per viewer
+        Object packet = PacketAccessors.metadata.create(0, PacketAccessors.dataWatcher.get(nmsEntity), true);
+        for(Object item : (List<?>) PacketAccessors.metadataItems.get(packet))  {
+            int index = (int) PacketAccessors.getObjectIndex.invoke(PacketAccessors.getItemObject.invoke(item));
+            Object value = PacketAccessors.getItemValue.invoke(item);
+
+            TrackedMetadata tracked = metadata.get(index);
+            if(tracked == null) {
+                tracked = new TrackedMetadata();
+                metadata.put(index, tracked);
+            }   else if(metadataEquals(tracked.value, value))   {
+                continue;
+            }
+
+            tracked.item = item;
+            tracked.value = value;
+            tracked.changedTick = lastUpdated;
+        }
+    }
+
+    // NMS ItemStacks don't implement equals, and the metadata packet contains copies of them, so they are compared through bukkit
+    private static boolean metadataEquals(Object a, Object b)   {
+        if(PacketAccessors.nmsItemStackClass.isInstance(a) && PacketAccessors.nmsItemStackClass.isInstance(b))  {
+            return PacketAccessors.asCraftMirror.invoke(null, a).equals(PacketAccessors.asCraftMirror.invoke(null, b));
+        }
+        return Objects.equals(a, b);
+    }
+
+    // Gets the metadata items that changed after the given tick
+    public List<Object> getChangedMetadata(int sinceTick)    {
+        List<Object> changed = new ArrayList<>();
+        for(TrackedMetadata tracked : metadata.values())    {
+            if(tracked.changedTick > sinceTick) {
+                changed.add(tracked.item);
+            }
+        }
+        return changed;
+    }
+}
@@ -6,17 +6,18 @@ import java.util.Random;
 
 import com.lauriethefish.betterportals.ReflectUtils;
 import com.lauriethefish.betterportals.portal.Portal;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
 
-import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Hanging;
 import org.bukkit.entity.HumanEntity;
-import org.bukkit.entity.LivingEntity;
 import org.bukkit.util.Vector;
 
 import lombok.Getter;
+import lombok.Setter;
 
-// Stores the current state of a fake entity
+// Stores the current state of a fake entity, as it was last sent to the player
+// The state of the entity this tick is found from the ReplicatedEntityState shared by every player viewing it through the portal
 @Getter
 public class ViewableEntity {
     private EntityManipulator manipulator;
@@ -26,88 +27,43 @@ public class ViewableEntity {
     private int entityId;
     
     private Portal portal; // Used to find where to entity should appear on this side of the portal
+    private ReplicatedEntityState state;
     private EntityEquipmentState equipment; // The equipment that the player current sees on the entity
 
     // The rotation and location could just be stored together, however this would be annoying when checking for equality
     private Vector location;
-    private Vector rotation; // Rotation of the entity in the last tick, used to find if we need to resend the entity look packet
+    private Vector rotation;
     private byte byteYaw;
     private byte bytePitch;
     private byte byteHeadRotation;
-    // Store the location in the previous tick, as this is needed to send relative move packets
-    private Vector oldLocation;
     private boolean sleepingLastTick = false;
     private List<Entity> oldPassengers;
+    // How many ticks the entity has been out of view, while the fake entity is kept for the grace period
+    @Setter private int ticksOutOfView = 0;
+    // The tick of the shared state when the metadata was last sent, so that only items changed since then are sent
+    private int lastMetadataTick;
 
     public ViewableEntity(EntityManipulator manipulator, Entity entity, Portal portal, Random random)   {
         this.manipulator = manipulator;
         this.entity = entity;
         this.portal = portal;
-        this.nmsEntity = ReflectUtils.runMethod(entity, "getHandle");
+        this.nmsEntity = PacketAccessors.getHandle(entity);
         // Generate a random entityId, since otherwise, the real entity with the same ID may be moved instead of the fake one
         this.entityId = random.nextInt(Integer.MAX_VALUE);
 
-        calculateLocation();
-        calculateRotation();
-        updateEntityEquipment();
-    }
-
-    // Returns the change in location if the location changed, otherwise null is returned
-    public Vector calculateLocation() {
-        oldLocation = location;
-        
-        location = portal.moveDestinationToOrigin(EntityManipulator.getEntityPosition(entity, nmsEntity));
-
-        return location.equals(oldLocation) || oldLocation == null ? null : location.clone().subtract(oldLocation);
-    }
-
-    // Returns true if the rotation changed
-    private boolean calculateRotation() {
-        Vector oldRotation = rotation;
-        rotation = portal.rotateToOrigin(entity.getLocation().getDirection());
-
-        // Dummy location to get the pitch and yaw more easily
-        Location loc = entity.getLocation();
-        loc.setDirection(rotation);
-        byteYaw = (byte) (loc.getYaw() * 256 / 360);
-        bytePitch = (byte) (loc.getPitch() * 256 / 360);
-
-        return !rotation.equals(oldRotation);
-    }
-
-    // Sends a PacketPlayOutEntityHeadRotation if the entity's head rotation changed
-    private void updateHeadRotation() {
-        byte oldHeadRotation = byteHeadRotation;
-        // Use the methods in Location to easily convert the yaw to a vector and back again
-        Location loc = entity.getLocation();
-        float headRotation = (float) ReflectUtils.runMethod(nmsEntity, "getHeadRotation");
-        loc.setYaw(headRotation);
-        loc = loc.setDirection(portal.rotateToOrigin(loc.getDirection()));
-        byteHeadRotation = (byte) (loc.getYaw() * 256 / 360);
-        
-        if(byteHeadRotation != oldHeadRotation) {
-            manipulator.sendHeadRotationPacket(entityId, byteHeadRotation);
-        }
-    }
-
-    // Deals with sending a PacketPlayOutEntityEquipment if the equipment changed
-    private void updateEntityEquipment()    {
-        // Only LivingEntities have equipment
-        if(!(entity instanceof LivingEntity)) {return;}
-
-        LivingEntity livingEntity = (LivingEntity) entity;
-
-        EntityEquipmentState oldEquipment = equipment;
-        equipment = new EntityEquipmentState(livingEntity.getEquipment());
-        // If the equipment changed, send packets to show it to the player
-        if(!equipment.equals(oldEquipment)) {
-            manipulator.sendEntityEquipmentPackets(livingEntity, entityId);
-        }
+        // The entity is spawned with this location, rotation and equipment
+        state = portal.getReplicatedState(entity);
+        location = state.getLocation();
+        rotation = state.getRotation();
+        byteYaw = state.getByteYaw();
+        bytePitch = state.getBytePitch();
+        equipment = state.getEquipment();
+        lastMetadataTick = state.getLastUpdated(); // All of the metadata is sent when the entity is spawned
     }
 
     private void updateMountedEntities()    {
         // If our passengers have not changed, then return
-        List<Entity> passengers = entity.getPassengers();
+        List<Entity> passengers = state.getPassengers();
         if(passengers.equals(oldPassengers))  {return;}
 
         // Otherwise, loop through each passenger, and check if it is visible to the player through the portal
@@ -129,20 +85,37 @@ public class ViewableEntity {
 
     // Called by EntityManipulator, this function should send all the packets necessary to keep the entity replicated
     void update()   {
+        state = portal.getReplicatedState(entity);
+
         // PacketPlayOutEntityMetadata carries the vast majority of entity data
-        manipulator.sendMetadataPacket(nmsEntity, entityId);
+        // If possible, only the items that have changed since they were last sent are included
+        if(PacketAccessors.metadataDiffing) {
+            List<Object> changedMetadata = state.getChangedMetadata(lastMetadataTick);
+            lastMetadataTick = state.getLastUpdated();
+            if(!changedMetadata.isEmpty())  {
+                manipulator.sendMetadataChanges(entityId, changedMetadata);
+            }
+        }   else    {
+            manipulator.sendMetadataPacket(nmsEntity, entityId);
+        }
 
-        // Send PacketPlayOutEntityEquipment if we need to
-        updateEntityEquipment();
+        // Send PacketPlayOutEntityEquipment if the equipment changed since it was last sent
+        if(state.getEquipment() != equipment)   {
+            manipulator.sendEntityEquipmentPackets(entityId, state.getEquipment(), equipment);
+            equipment = state.getEquipment();
+        }
 
         // Send packets to update the entity's head rotation if we need to
-        updateHeadRotation();
+        if(state.getByteHeadRotation() != byteHeadRotation) {
+            byteHeadRotation = state.getByteHeadRotation();
+            manipulator.sendHeadRotationPacket(entityId, byteHeadRotation);
+        }
 
         // Send packets to control which entities are riding this entity
         updateMountedEntities();
 
         if(entity instanceof HumanEntity) {
-            boolean sleeping = ((HumanEntity) entity).isSleeping();
+            boolean sleeping = state.isSleeping();
 
             // If we are now sleeping, and weren't last tick, send the PacketPlayOutBed
             // NOTE: This packet isn't required on some versions
@@ -159,8 +132,13 @@ public class ViewableEntity {
         // Don't send movement packets for hanging entities
         if(entity instanceof Hanging)   {return;}
 
-        boolean rotChanged = calculateRotation();
-        Vector posOffset = calculateLocation();
+        boolean rotChanged = state.getByteYaw() != byteYaw || state.getBytePitch() != bytePitch;
+        Vector posOffset = state.getLocation().equals(location) ? null : state.getLocation().clone().subtract(location);
+        location = state.getLocation();
+        rotation = state.getRotation();
+        byteYaw = state.getByteYaw();
+        bytePitch = state.getBytePitch();
+
         if(posOffset != null)  {
             // If our position changed, and the distance was short enough for relative move packets
             if(manipulator.isSafeForMovePacket(posOffset)) {
@@ -180,4 +158,4 @@ public class ViewableEntity {
             manipulator.sendLookPacket(entityId, byteYaw, bytePitch);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package com.lauriethefish.betterportals.entitymanipulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.entity.Entity;
+
+// Stores which players are viewing each replicated entity, so that events for an entity only need to look at its viewers
+// This is kept up to date by each player's EntityManipulator, and is only used from the main thread
+public class ViewerIndex {
+    private Map<Entity, List<ViewableEntity>> viewers = new HashMap<>();
+
+    void add(ViewableEntity viewed)    {
+        viewers.computeIfAbsent(viewed.getEntity(), entity -> new ArrayList<>(1)).add(viewed);
+    }
+
+    void remove(ViewableEntity viewed)  {
+        List<ViewableEntity> entityViewers = viewers.get(viewed.getEntity());
+        if(entityViewers == null)   {return;}
+
+        entityViewers.remove(viewed);
+        if(entityViewers.isEmpty()) {
+            viewers.remove(viewed.getEntity());
+        }
+    }
+
+    // Gets the fake entities replicating this entity for each player viewing it, or an empty list if nobody is
+    public List<ViewableEntity> getViewers(Entity entity)   {
+        List<ViewableEntity> entityViewers = viewers.get(entity);
+        return entityViewers == null ? Collections.emptyList() : entityViewers;
+    }
+}
@@ -0,0 +1,29 @@
+package com.lauriethefish.betterportals.events;
+
+import com.lauriethefish.betterportals.BetterPortals;
+
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+// Keeps the entity index up to date with entities spawning and chunks unloading
+// Only registered if useEntityIndex is enabled in the config
+public class EntityIndexEvents implements Listener {
+    private BetterPortals pl;
+    public EntityIndexEvents(BetterPortals pl)  {
+        this.pl = pl;
+    }
+
+    // This is also called for creature and item spawns
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event)   {
+        pl.getPortalUpdator().getEntityIndex().addEntity(event.getEntity());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onChunkUnload(ChunkUnloadEvent event)   {
+        pl.getPortalUpdator().getEntityIndex().removeChunk(event.getChunk());
+    }
+}
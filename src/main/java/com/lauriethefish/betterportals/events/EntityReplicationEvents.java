@@ -4,7 +4,6 @@ import java.util.HashMap;
 import java.util.Map;
 
 import com.lauriethefish.betterportals.BetterPortals;
-import com.lauriethefish.betterportals.PlayerData;
 import com.lauriethefish.betterportals.entitymanipulation.EntityManipulator;
 import com.lauriethefish.betterportals.entitymanipulation.ViewableEntity;
 
@@ -27,21 +26,6 @@ public class EntityReplicationEvents implements Listener    {
         this.pl = pl;
     }
 
-    // Finds which players have the given entity currently visible through a portal
-    private Map<ViewableEntity, EntityManipulator> findViewingPlayers(Entity entity) {
-        Map<ViewableEntity, EntityManipulator> result = new HashMap<>();
-
-        for(PlayerData player : pl.getPlayers()) {
-            EntityManipulator manipulator = player.getEntityManipulator();
-            // If this entity is in the replicated entities, add it to the map
-            ViewableEntity playerEntity = manipulator.getViewedEntity(entity);
-            if(playerEntity != null)    {
-                result.put(playerEntity, manipulator);
-            }
-        }
-        return result;
-    }
-
     @EventHandler
     public void onPlayerAnimation(PlayerAnimationEvent event) {
         // Right now there is only 1 animation type, so this code is sort of useless, but there may be more in the future
@@ -51,8 +35,8 @@ public class EntityReplicationEvents implements Listener    {
 
         EquipmentSlot handUsed = lastHandUsed.get(player);
         int animationType = handUsed == EquipmentSlot.HAND ? 0 : 3;
-        for(Map.Entry<ViewableEntity, EntityManipulator> entry : findViewingPlayers(player).entrySet())  {
-            entry.getValue().sendAnimationPacket(entry.getKey(), animationType);
+        for(ViewableEntity viewed : pl.getViewerIndex().getViewers(player))  {
+            viewed.getManipulator().sendAnimationPacket(viewed, animationType);
         }
     }
 
@@ -68,20 +52,20 @@ public class EntityReplicationEvents implements Listener    {
     // Sends a packet to make replicated entities flash red when damaged
     @EventHandler
     public void onEntityDamage(EntityDamageEvent event) {
-        for(Map.Entry<ViewableEntity, EntityManipulator> entry : findViewingPlayers(event.getEntity()).entrySet())  {
-            entry.getValue().sendAnimationPacket(entry.getKey(), 1);
+        for(ViewableEntity viewed : pl.getViewerIndex().getViewers(event.getEntity()))  {
+            viewed.getManipulator().sendAnimationPacket(viewed, 1);
         }
     }
 
     @EventHandler
     public void onEntityPickupItem(EntityPickupItemEvent event) {
-        for(Map.Entry<ViewableEntity, EntityManipulator> entry : findViewingPlayers(event.getEntity()).entrySet())  {
+        for(ViewableEntity viewed : pl.getViewerIndex().getViewers(event.getEntity()))  {
             // Find if the item is also visible through the portal
-            EntityManipulator manipulator = entry.getValue();
+            EntityManipulator manipulator = viewed.getManipulator();
             ViewableEntity item = manipulator.getViewedEntity(event.getItem());
             if(item == null) {continue;}
             // Send a packet that displays the animation of the entity picking up the item
-            manipulator.sendPickupItemPacket(entry.getKey(), item);
+            manipulator.sendPickupItemPacket(viewed, item);
         }
     }
 }
@@ -46,4 +46,21 @@ public class MathUtils {
     public static Vector max(Vector a, Vector b)    {
         return new Vector(Math.max(a.getX(), b.getX()), Math.max(a.getY(), b.getY()), Math.max(a.getZ(), b.getZ()));
     }
+
+    // Packs the coordinates of a block into a long, in the same way as minecraft's BlockPosition
+    public static long packBlockPosition(int x, int y, int z)   {
+        return ((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | ((long) y & 0xFFF);
+    }
+
+    public static int unpackBlockX(long position)   {
+        return (int) (position >> 38);
+    }
+
+    public static int unpackBlockY(long position)   {
+        return (int) (position << 52 >> 52);
+    }
+
+    public static int unpackBlockZ(long position)   {
+        return (int) (position << 26 >> 38);
+    }
 }
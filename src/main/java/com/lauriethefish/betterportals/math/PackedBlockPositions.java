@@ -0,0 +1,53 @@
+package com.lauriethefish.betterportals.math;
+
+import java.util.List;
+
+import com.lauriethefish.betterportals.BlockRaycastData;
+
+import org.bukkit.util.Vector;
+
+import lombok.Getter;
+
+// Stores the positions of the blocks found by a portal scan in flat arrays, so that their visibility can be checked in one batch
+// The blocks are kept with the positions, so that the index of each position always matches the list it was made from
+public class PackedBlockPositions {
+    @Getter private List<BlockRaycastData> blocks;
+    @Getter private int size;
+
+    double[] x;
+    double[] y;
+    double[] z;
+
+    public PackedBlockPositions(List<BlockRaycastData> blocks)  {
+        this.blocks = blocks;
+        size = blocks.size();
+        x = new double[size];
+        y = new double[size];
+        z = new double[size];
+
+        for(int i = 0; i < size; i++)  {
+            Vector position = blocks.get(i).getOriginVec();
+            x[i] = position.getX();
+            y[i] = position.getY();
+            z[i] = position.getZ();
+        }
+    }
+
+    // Used for testing, where there are no blocks to go with the positions
+    public PackedBlockPositions(double[] x, double[] y, double[] z)   {
+        this.size = x.length;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    // Makes a bitmask big enough to store one bit for each position
+    public long[] createMask()  {
+        return new long[(size + 63) >> 6];
+    }
+
+    // Checks if the bit for the position at index is set in the mask
+    public static boolean isSet(long[] mask, int index) {
+        return (mask[index >> 6] & (1L << index)) != 0;
+    }
+}
@@ -1,5 +1,7 @@
 package com.lauriethefish.betterportals.math;
 
+import java.util.Arrays;
+
 import com.lauriethefish.betterportals.portal.Portal;
 
 import org.bukkit.entity.Player;
@@ -58,4 +60,38 @@ public class PlaneIntersectionChecker {
 
         return false;
     }
+
+    // Does the same check as checkIfVisibleThroughPortal for every position, and sets the bit in visibleMask for each visible one
+    // This works directly on the packed arrays without creating any vectors, since it is run for every block around the portal
+    public void checkIfVisibleThroughPortal(PackedBlockPositions positions, long[] visibleMask)    {
+        double originX = rayOrigin.getX(); double originY = rayOrigin.getY(); double originZ = rayOrigin.getZ();
+        double normalX = planeNormal.getX(); double normalY = planeNormal.getY(); double normalZ = planeNormal.getZ();
+        double centerX = planeCenter.getX(); double centerY = planeCenter.getY(); double centerZ = planeCenter.getZ();
+        double maxDevX = maxDev.getX(); double maxDevY = maxDev.getY(); double maxDevZ = Math.abs(maxDev.getZ());
+
+        // The distance along the normal from the ray origin to the plane is the same for every block
+        double planeDistance = (centerX - originX) * normalX + (centerY - originY) * normalY + (centerZ - originZ) * normalZ;
+
+        double[] xs = positions.x; double[] ys = positions.y; double[] zs = positions.z;
+        Arrays.fill(visibleMask, 0L);
+        for(int i = 0; i < positions.getSize(); i++)  {
+            double dirX = xs[i] - originX; double dirY = ys[i] - originY; double dirZ = zs[i] - originZ;
+            double distance = Math.sqrt(dirX * dirX + dirY * dirY + dirZ * dirZ);
+            dirX /= distance; dirY /= distance; dirZ /= distance;
+
+            double denominator = normalX * dirX + normalY * dirY + normalZ * dirZ;
+            if(!(Math.abs(denominator) > MathUtils.EPSILON))    {continue;}
+
+            double t = planeDistance / denominator;
+            // Skip blocks before the portal, or behind the ray origin
+            if(distance < t || !(t > MathUtils.EPSILON))   {continue;}
+
+            double distCenterX = originX + dirX * t - centerX;
+            double distCenterY = originY + dirY * t - centerY;
+            double distCenterZ = originZ + dirZ * t - centerZ;
+            if(Math.abs(distCenterX) <= maxDevX && Math.abs(distCenterY) <= maxDevY && Math.abs(distCenterZ) <= maxDevZ)   {
+                visibleMask[i >> 6] |= 1L << i;
+            }
+        }
+    }
 }
@@ -0,0 +1,37 @@
+package com.lauriethefish.betterportals.math;
+
+import org.bukkit.util.Vector;
+
+// The rectangle that entities pass through to go through a portal, stored as primitives so that it can be checked without making any vectors
+// This is checked against the path every entity near the portal took during the last tick
+public class PortalPlane {
+    private final double centerX; private final double centerY; private final double centerZ;
+    private final double normalX; private final double normalY; private final double normalZ;
+    private final double maxDevX; private final double maxDevY; private final double maxDevZ;
+
+    // radius is the distance from the center to the edges of the rectangle on each axis, as in Portal.getPlaneRadius
+    public PortalPlane(Vector center, Vector normal, Vector radius)  {
+        centerX = center.getX(); centerY = center.getY(); centerZ = center.getZ();
+        normalX = normal.getX(); normalY = normal.getY(); normalZ = normal.getZ();
+        maxDevX = Math.abs(radius.getX()); maxDevY = Math.abs(radius.getY()); maxDevZ = Math.abs(radius.getZ());
+    }
+
+    // Finds where the line from one position to another crosses the portal rectangle, in either direction
+    // Returns the fraction of the way along the line that the crossing is at, or -1 if it doesn't cross
+    // Since the whole line is checked, entities moving fast enough to go through the portal in one tick are still found
+    public double findCrossing(double fromX, double fromY, double fromZ, double toX, double toY, double toZ)   {
+        // The distance of each end in front of the plane
+        double fromDistance = (fromX - centerX) * normalX + (fromY - centerY) * normalY + (fromZ - centerZ) * normalZ;
+        double toDistance = (toX - centerX) * normalX + (toY - centerY) * normalY + (toZ - centerZ) * normalZ;
+        if((fromDistance > 0.0) == (toDistance > 0.0))  {return -1.0;}
+
+        double fraction = fromDistance / (fromDistance - toDistance);
+        double distCenterX = fromX + (toX - fromX) * fraction - centerX;
+        double distCenterY = fromY + (toY - fromY) * fraction - centerY;
+        double distCenterZ = fromZ + (toZ - fromZ) * fraction - centerZ;
+        if(Math.abs(distCenterX) <= maxDevX && Math.abs(distCenterY) <= maxDevY && Math.abs(distCenterZ) <= maxDevZ)   {
+            return fraction;
+        }
+        return -1.0;
+    }
+}
@@ -0,0 +1,185 @@
+package com.lauriethefish.betterportals.multiblockchange;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.lauriethefish.betterportals.network.DirectPacketWriter;
+import com.lauriethefish.betterportals.network.PacketPriority;
+import com.lauriethefish.betterportals.network.PacketScheduler;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.collection.LongObjectHashMap;
+
+// Stores the changes for each implementation, split into chunk sections (or chunks before 1.16.2) that are kept between updates
+// One instance of this is kept per player, so anything adding changes should synchronize on it until the changes are sent
+public abstract class BaseMultiBlockChangeManager implements MultiBlockChangeManager {
+    protected Player player;
+    protected PacketScheduler scheduler;
+    protected DirectPacketWriter directWriter; // Null if packets are sent through NMS
+
+    // Whether the changes are split into chunk sections, or whole chunks in older versions
+    private boolean useSections;
+
+    // The changes in each section, with the key made by SectionChanges.getKey
+    // Low priority changes are kept separately, since they are sent in different packets that can be held back by the scheduler
+    private LongObjectHashMap<SectionChanges> changes = new LongObjectHashMap<>();
+    private LongObjectHashMap<SectionChanges> lowPriorityChanges = new LongObjectHashMap<>();
+    // Sections that have been sent, ready to be used again for the next changes
+    private ArrayDeque<SectionChanges> unusedSections = new ArrayDeque<>();
+
+    private Map<Vector, Object> wholeSectionView = null;
+    private int wholeSectionThreshold;
+    private boolean sentWholeSections = false;
+    private boolean sharePackets = false;
+
+    protected BaseMultiBlockChangeManager(Player player, PacketScheduler scheduler, boolean useSections)  {
+        this.player = player;
+        this.scheduler = scheduler;
+        this.useSections = useSections;
+        directWriter = DirectPacketWriter.forPlayer(player);
+    }
+
+    public void addChange(Vector location, Object newType)  {
+        addChange(location, newType, PacketPriority.HIGH);
+    }
+
+    // Adds a new block to the section that it's in
+    // If the same block is added twice before sending, only the last data is sent
+    public void addChange(Vector location, Object newType, PacketPriority priority)  {
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+
+        LongObjectHashMap<SectionChanges> sections = priority == PacketPriority.LOW ? lowPriorityChanges : changes;
+        int sectionY = useSections ? y >> 4 : 0;
+        long key = SectionChanges.getKey(x >> 4, sectionY, z >> 4);
+        SectionChanges section = sections.get(key);
+        // Reuse a section from a previous update if there is one
+        if(section == null) {
+            section = unusedSections.poll();
+            if(section == null) {
+                section = new SectionChanges();
+            }
+            section.setPosition(x >> 4, sectionY, z >> 4, priority);
+            sections.put(key, section);
+        }
+
+        if(useSections) {
+            section.add((short) ((x & 0xF) << 8 | (z & 0xF) << 4 | (y & 0xF)), newType);
+        }   else    {
+            section.add((short) ((x & 0xF) << 12 | (z & 0xF) << 8 | y), newType);
+        }
+    }
+
+    public void enableWholeSections(Map<Vector, Object> view, int threshold)   {
+        if(useSections) {
+            wholeSectionView = view;
+            wholeSectionThreshold = threshold;
+        }
+    }
+
+    public void enableSharedPackets()   {
+        sharePackets = true;
+    }
+
+    public boolean sentWholeSections()  {
+        return sentWholeSections;
+    }
+
+    // Sends all the queued changes, then clears them
+    public void sendChanges()   {
+        // Send sections where most blocks have changed as a whole, these sections are cleared once sent
+        sentWholeSections = false;
+        if(wholeSectionView != null)    {
+            List<SectionChanges> allChanges = new ArrayList<>(changes.values());
+            allChanges.addAll(lowPriorityChanges.values());
+            sentWholeSections = ChunkSectionPacket.sendWholeSections(player, scheduler, allChanges, wholeSectionView, wholeSectionThreshold);
+            wholeSectionView = null;
+        }
+
+        sendSections(changes);
+        sendSections(lowPriorityChanges);
+        sharePackets = false;
+    }
+
+    private void sendSections(LongObjectHashMap<SectionChanges> sections)   {
+        for(SectionChanges section : sections.values())  {
+            // A single block change packet is smaller if only one block in the section has changed
+            if(section.getSize() == 1)  {
+                send(createBlockChange(section), section);
+            }   else if(section.getSize() > 1 && sharePackets)  {
+                // Other players seeing the same changes this tick can use the same packet
+                send(SharedPacketCache.getPacket(section, directWriter != null, this::createMultiBlockChange), section);
+            }   else if(section.getSize() > 1)  {
+                send(createMultiBlockChange(section), section);
+            }
+
+            section.clear();
+            unusedSections.add(section);
+        }
+        sections.clear();
+    }
+
+    public List<Object> createPackets()    {
+        List<Object> packets = new ArrayList<>();
+        createPackets(changes, packets);
+        createPackets(lowPriorityChanges, packets);
+        return packets;
+    }
+
+    private void createPackets(LongObjectHashMap<SectionChanges> sections, List<Object> packets)   {
+        for(SectionChanges section : sections.values())  {
+            if(section.getSize() == 1)  {
+                packets.add(createBlockChange(section));
+            }   else if(section.getSize() > 1)  {
+                packets.add(createMultiBlockChange(section));
+            }
+
+            section.clear();
+            unusedSections.add(section);
+        }
+        sections.clear();
+    }
+
+    // Makes a packet changing the only block in the section
+    private Object createBlockChange(SectionChanges section)    {
+        short position = section.getPositions()[0];
+        Object data = section.getData()[0];
+
+        int x; int y; int z;
+        if(useSections) {
+            x = section.getX() << 4 | (position >> 8 & 0xF);
+            y = section.getY() << 4 | (position & 0xF);
+            z = section.getZ() << 4 | (position >> 4 & 0xF);
+        }   else    {
+            x = section.getX() << 4 | (position >> 12 & 0xF);
+            y = position & 0xFF;
+            z = section.getZ() << 4 | (position >> 8 & 0xF);
+        }
+
+        if(directWriter != null)    {
+            return directWriter.encodeBlockChange(x, y, z, data);
+        }
+
+        Object packet = PacketAccessors.blockChange.create();
+        PacketAccessors.blockChange.setFields(packet, PacketAccessors.blockPosition.newInstance(x, y, z), data);
+        return packet;
+    }
+
+    // Sends a packet containing the changes in section with the section's priority
+    protected void send(Object packet, SectionChanges section)  {
+        // NMS packets aren't encoded yet, but each block is around 4 bytes
+        int size = packet instanceof ByteBuf ? ((ByteBuf) packet).readableBytes() : 12 + section.getSize() * 4;
+        scheduler.send(packet, size, section.getPriority());
+    }
+
+    // Constructs a multiple block change packet from the changes in the section, either an NMS packet or a direct buffer
+    // The packet may be sent to more than one player, so it must not be changed after this
+    protected abstract Object createMultiBlockChange(SectionChanges section);
+}
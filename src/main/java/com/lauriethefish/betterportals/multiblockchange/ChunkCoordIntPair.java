@@ -4,7 +4,7 @@ import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
 
-import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
 
 import org.bukkit.Chunk;
 import org.bukkit.Location;
@@ -67,7 +67,7 @@ public class ChunkCoordIntPair {
 
     // Makes an NMS ChunkCoordIntPair from this object
     public Object toNMS()   {
-        return ReflectUtils.newInstance("ChunkCoordIntPair", new Class[]{int.class, int.class}, new Object[]{x, z});
+        return PacketAccessors.chunkCoordIntPair.newInstance(x, z);
     }
 
     // Finds if this chunk has been generated before. This has the side effect of loading the chunk if it exists
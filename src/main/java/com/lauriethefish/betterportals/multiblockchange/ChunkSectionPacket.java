@@ -0,0 +1,209 @@
+package com.lauriethefish.betterportals.multiblockchange;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.network.PacketPriority;
+import com.lauriethefish.betterportals.network.PacketScheduler;
+import com.lauriethefish.betterportals.reflection.ConstructorAccessor;
+import com.lauriethefish.betterportals.reflection.MethodAccessor;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+import com.lauriethefish.betterportals.reflection.PacketType;
+
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+// Sends chunk packets containing a single chunk section, with the blocks that the player sees through the portal merged into it
+// When most of a section has changed, this is smaller than a multi block change entry for every block, and faster for the client to process
+// Only used in 1.16.2 and up, since the section based multi block change managers are only used there
+public class ChunkSectionPacket {
+    private static final int SECTION_VOLUME = 16 * 16 * 16;
+    // Roughly the size of a section with a full palette, used by the packet scheduler
+    private static final int SECTION_PACKET_SIZE = 8192;
+
+    // The methods and fields are found once, since these are used for every block in the section
+    private static MethodAccessor getChunkHandle;
+    private static MethodAccessor getSections;
+    private static MethodAccessor getTileEntities;
+    private static MethodAccessor getUpdateTag;
+    private static MethodAccessor getType;
+    private static MethodAccessor setType;
+    private static MethodAccessor recalcBlockCounts;
+    private static MethodAccessor writeSection;
+    private static MethodAccessor setReady;
+    private static ConstructorAccessor sectionConstructor;
+    private static ConstructorAccessor serializerConstructor;
+    private static ConstructorAccessor nbtConstructor;
+    private static PacketType mapChunk;
+
+    // If any of the above can't be found, whole sections are never sent
+    private static boolean supported = findMembers();
+    private static boolean findMembers()   {
+        try {
+            Class<?> chunkSection = ReflectUtils.getMcClass("ChunkSection");
+            Class<?> blockData = ReflectUtils.getMcClass("IBlockData");
+            Class<?> serializer = ReflectUtils.getMcClass("PacketDataSerializer");
+
+            getChunkHandle = new MethodAccessor(ReflectUtils.getBukkitClass("CraftChunk"), "getHandle");
+            getSections = new MethodAccessor(ReflectUtils.getMcClass("Chunk"), "getSections");
+            getTileEntities = new MethodAccessor(ReflectUtils.getMcClass("Chunk"), "getTileEntities");
+            // The same NBT that the server sends for tile entities in chunk packets
+            getUpdateTag = new MethodAccessor(ReflectUtils.getMcClass("TileEntity"), "b");
+            getType = new MethodAccessor(chunkSection, "getType", int.class, int.class, int.class);
+            setType = new MethodAccessor(chunkSection, "setType", int.class, int.class, int.class, blockData, boolean.class);
+            recalcBlockCounts = new MethodAccessor(chunkSection, "recalcBlockCounts");
+            writeSection = new MethodAccessor(chunkSection, "b", serializer);
+            sectionConstructor = new ConstructorAccessor(chunkSection, int.class);
+            serializerConstructor = new ConstructorAccessor(serializer, ByteBuf.class);
+            nbtConstructor = new ConstructorAccessor(ReflectUtils.getMcClass("NBTTagCompound"));
+            // Chunk X, chunk Z, section bitmask, heightmaps, section data, tile entities, whether the chunk is full
+            mapChunk = new PacketType("PacketPlayOutMapChunk", "a", "b", "c", "d", "f", "g", "h");
+
+            // Paper holds back chunk packets until they are marked as ready
+            try {
+                setReady = new MethodAccessor(ReflectUtils.getMcClass("PacketPlayOutMapChunk"), "setReady", boolean.class);
+            }   catch(IllegalStateException ex)  {}
+            return true;
+        }   catch(RuntimeException ex)   {
+            return false;
+        }
+    }
+
+    // Sends every section in changes with at least threshold changed blocks as a whole section, and clears them
+    // The same section may be in changes more than once, for instance with different priorities
+    // view contains every block that the player sees differently to the world, so that these are kept in the sent sections
+    // Returns true if any whole sections were sent
+    public static boolean sendWholeSections(Player player, PacketScheduler scheduler, Collection<SectionChanges> changes,
+                                                Map<Vector, Object> view, int threshold)   {
+        if(!supported || threshold <= 0)   {return false;}
+
+        // Find the sections that have changed enough to be sent whole
+        Map<Long, Integer> changeCounts = new HashMap<>();
+        for(SectionChanges section : changes)   {
+            changeCounts.merge(SectionChanges.getKey(section.getX(), section.getY(), section.getZ()), section.getSize(), Integer::sum);
+        }
+        Map<Long, Object[]> denseSections = new HashMap<>();
+        for(Map.Entry<Long, Integer> entry : changeCounts.entrySet())   {
+            if(entry.getValue() >= threshold)    {
+                denseSections.put(entry.getKey(), new Object[SECTION_VOLUME]);
+            }
+        }
+        if(denseSections.isEmpty()) {return false;}
+
+        // Add the blocks that the player currently sees, then the new changes on top of them
+        for(Map.Entry<Vector, Object> entry : view.entrySet())  {
+            Vector location = entry.getKey();
+            Object[] overlay = denseSections.get(SectionChanges.getKey(location.getBlockX() >> 4, location.getBlockY() >> 4, location.getBlockZ() >> 4));
+            if(overlay != null) {
+                overlay[getIndex(location.getBlockX() & 0xF, location.getBlockY() & 0xF, location.getBlockZ() & 0xF)] = entry.getValue();
+            }
+        }
+        for(SectionChanges section : changes)  {
+            Object[] overlay = denseSections.get(SectionChanges.getKey(section.getX(), section.getY(), section.getZ()));
+            if(overlay == null) {continue;}
+
+            // The positions are packed as x << 8 | z << 4 | y
+            for(int i = 0; i < section.getSize(); i++)  {
+                short position = section.getPositions()[i];
+                overlay[getIndex(position >> 8 & 0xF, position & 0xF, position >> 4 & 0xF)] = section.getData()[i];
+            }
+        }
+
+        // Any held back changes must arrive before the whole sections, otherwise they would overwrite them with older blocks
+        scheduler.flushDeferred();
+
+        boolean sentAny = false;
+        for(Map.Entry<Long, Object[]> entry : denseSections.entrySet())  {
+            long key = entry.getKey();
+            Object packet = createPacket(player.getWorld(), SectionChanges.getKeyX(key), SectionChanges.getKeyY(key), SectionChanges.getKeyZ(key), entry.getValue());
+            // If the packet couldn't be made, for instance if the chunk is unloaded, the blocks are sent individually instead
+            if(packet == null)  {continue;}
+
+            scheduler.send(packet, SECTION_PACKET_SIZE, PacketPriority.HIGH);
+            for(SectionChanges section : changes)  {
+                if(SectionChanges.getKey(section.getX(), section.getY(), section.getZ()) == key)    {
+                    section.clear();
+                }
+            }
+            sentAny = true;
+        }
+        return sentAny;
+    }
+
+    private static int getIndex(int x, int y, int z)    {
+        return y << 8 | z << 4 | x;
+    }
+
+    // Makes a chunk packet containing the section from the world, with any non-null blocks in overlay replacing those in the world
+    // This reads the chunk from the world, so must be called on the main thread unless unsafeMode is on
+    // Returns null if the section can't be sent
+    private static Object createPacket(World world, int sectionX, int sectionY, int sectionZ, Object[] overlay)  {
+        if(sectionY < 0 || sectionY >= 16 || !world.isChunkLoaded(sectionX, sectionZ))    {return null;}
+
+        try {
+            Object chunk = getChunkHandle.invoke(world.getChunkAt(sectionX, sectionZ));
+            Object realSection = ((Object[]) getSections.invoke(chunk))[sectionY];
+
+            // Copy the blocks into a new section, so that the one in the world isn't modified
+            Object section = sectionConstructor.newInstance(sectionY << 4);
+            for(int y = 0; y < 16; y++) {
+                for(int z = 0; z < 16; z++) {
+                    for(int x = 0; x < 16; x++) {
+                        Object data = overlay[getIndex(x, y, z)];
+                        if(data == null && realSection != null) {
+                            data = getType.invoke(realSection, x, y, z);
+                        }
+
+                        if(data != null)    {
+                            setType.invoke(section, x, y, z, data, false);
+                        }
+                    }
+                }
+            }
+            recalcBlockCounts.invoke(section);
+
+            // Write the section in the same way that the server does for chunk packets
+            ByteBuf buffer = Unpooled.buffer();
+            writeSection.invoke(section, serializerConstructor.newInstance(buffer));
+            byte[] data = new byte[buffer.readableBytes()];
+            buffer.readBytes(data);
+
+            // The client removes every tile entity in the section when it receives the packet, so the ones from the world must be sent again
+            List<Object> tileEntities = new ArrayList<>();
+            for(Map.Entry<?, ?> entry : ((Map<?, ?>) getTileEntities.invoke(chunk)).entrySet())  {
+                Object position = entry.getKey();
+                int x = (int) PacketAccessors.getX.invoke(position);
+                int y = (int) PacketAccessors.getY.invoke(position);
+                int z = (int) PacketAccessors.getZ.invoke(position);
+                // Skip tile entities that aren't in this section, or that the player sees as a different block
+                if(y >> 4 != sectionY || overlay[getIndex(x & 0xF, y & 0xF, z & 0xF)] != null) {continue;}
+
+                tileEntities.add(getUpdateTag.invoke(entry.getValue()));
+            }
+
+            // Make a chunk packet that only contains this section, which makes the client replace only this section
+            Object packet = mapChunk.create();
+            mapChunk.setFields(packet, sectionX, sectionZ, 1 << sectionY, nbtConstructor.newInstance(), data, tileEntities, false);
+            if(setReady != null)    {
+                setReady.invoke(packet, true);
+            }
+            return packet;
+        }   catch(ConcurrentModificationException ex)  {
+            // In unsafe mode the chunk's tile entities may change while being read, so the blocks are sent individually this time
+            return null;
+        }   catch(RuntimeException ex)  {
+            ex.printStackTrace();
+            supported = false; // Don't keep trying if the packet format is different to what we expect
+            return null;
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.lauriethefish.betterportals.multiblockchange;
 
-import com.lauriethefish.betterportals.ReflectUtils;
+import java.util.List;
+import java.util.Map;
+
+import com.lauriethefish.betterportals.network.PacketPriority;
+import com.lauriethefish.betterportals.network.PacketScheduler;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
 
 import org.bukkit.Location;
 import org.bukkit.entity.Player;
@@ -9,15 +14,35 @@ import org.bukkit.util.Vector;
 // Interface to represent both implementations of MultiblockChangeManager
 public interface MultiBlockChangeManager {
     // Instatiates the correct implementation of MultiBlockChangeManager depending on the underlying server
-    public static MultiBlockChangeManager createInstance(Player player)  {
-        return (MultiBlockChangeManager) ReflectUtils.newInstance(ReflectUtils.multiBlockChangeImpl,
-                                                new Class[]{Player.class}, new Object[]{player});
+    // One of these is kept for each player by PlayerData, and reused for every update
+    public static MultiBlockChangeManager createInstance(Player player, PacketScheduler scheduler)  {
+        return (MultiBlockChangeManager) PacketAccessors.multiBlockChangeManager.newInstance(player, scheduler);
     }
 
+    // Adds a high priority change
     public void addChange(Vector location, Object newType);
+    // Adds a change that is sent in a packet with the given priority
+    public void addChange(Vector location, Object newType, PacketPriority priority);
     public default void addChange(Location location, Object newType) {
         addChange(location.toVector(), newType);
     }
 
+    // Sends the changes, and clears them so that the manager can be reused
     public void sendChanges();
+
+    // Makes the packets for the queued changes without sending them, and clears the changes
+    public List<Object> createPackets();
+
+    // Lets sections with at least threshold changed blocks be sent whole instead of block by block, if the server version supports it
+    // view must contain every block that the player sees differently to the world, since the rest of the section is sent from the world
+    public default void enableWholeSections(Map<Vector, Object> view, int threshold)   {}
+
+    // Lets the next call to sendChanges share its packets with other players through SharedPacketCache
+    // This is only worth it if another player is viewing the same portal this tick, since otherwise nobody else can use the packets
+    public default void enableSharedPackets()   {}
+
+    // Returns true if any whole sections were sent by the last call to sendChanges
+    public default boolean sentWholeSections()  {
+        return false;
+    }
 }
\ No newline at end of file
@@ -1,73 +1,39 @@
 package com.lauriethefish.betterportals.multiblockchange;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.network.PacketScheduler;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
 
 import org.bukkit.entity.Player;
-import org.bukkit.util.Vector;
 
 // The Yatopia minecraft server changes the format of PacketPlayOutMultiBlockChange, so we need another implementation
-public class MultiBlockChangeManager_Tuinity implements MultiBlockChangeManager {
-    private Object playerConnection;
-    // Stores the changes, separated out into chunk sections
-    private HashMap<SectionPosition, HashMap<Vector, Object>> changes = new HashMap<>();
-
-    public MultiBlockChangeManager_Tuinity(Player player)   {
-        Object craftPlayer = ReflectUtils.runMethod(player, "getHandle");
-        playerConnection = ReflectUtils.getField(craftPlayer, "playerConnection");
-    }
-
-    // Adds a new block to the HashMap
-    public void addChange(Vector location, Object newType)  {
-        // Add a hashmap for this chunk if one doesn't already exist
-        SectionPosition section = new SectionPosition(location);
-        if(changes.get(section) == null)  {
-            changes.put(section, new HashMap<>());
-        }
-
-        changes.get(section).put(location, newType);
+public class MultiBlockChangeManager_Tuinity extends BaseMultiBlockChangeManager {
+    public MultiBlockChangeManager_Tuinity(Player player, PacketScheduler scheduler)   {
+        super(player, scheduler, true);
     }
 
-    // Sends all the queued changes
-    public void sendChanges()   {
-        for(Map.Entry<SectionPosition, HashMap<Vector, Object>> entry : changes.entrySet())   {
-            sendMultiBlockChange(entry.getValue(), entry.getKey());
+    // Constructs a multiple block change packet from the given blocks
+    @Override
+    protected Object createMultiBlockChange(SectionChanges section) {
+        if(directWriter != null)    {
+            return directWriter.encodeMultiBlockChange(section);
         }
-    }
-
-    // Constructs a multiple block change packet from the given blocks, and sends it to the player
-    // All the blocks MUST be in the same chunk section
-    private void sendMultiBlockChange(Map<Vector, Object> blocks, SectionPosition section) {
-        // Make a new PacketPlayOutMultiBlockChange
-        Class<?> packetClass = ReflectUtils.getMcClass("PacketPlayOutMultiBlockChange");
-        Object packet = ReflectUtils.newInstance(packetClass);
-        // Set the SectionPosition
-        ReflectUtils.setField(packet, "a", section.toNMS());
-
-        List<Object> dataArray = new ArrayList<>();
-        List<Short> shortArray = new ArrayList<>();
-
-        for(Map.Entry<Vector, Object> entry : blocks.entrySet())   {
-            Vector loc = entry.getKey();
-            // Find the chunk section relative position
-            int x = loc.getBlockX() & 0xF;
-            int y = loc.getBlockY() & 0xF;
-            int z = loc.getBlockZ() & 0xF;
 
-            // Set the correct IBlockData and relative position as a short
-            dataArray.add(entry.getValue());
-            shortArray.add((short) (x << 8 | z << 4 | y << 0));
+        int size = section.getSize();
+        List<Object> dataArray = new ArrayList<>(size);
+        List<Short> shortArray = new ArrayList<>(size);
+        for(int i = 0; i < size; i++)   {
+            dataArray.add(section.getData()[i]);
+            shortArray.add(section.getPositions()[i]);
         }
 
-        // Set it in the packet
-        ReflectUtils.setField(packet, "b", shortArray);
-        ReflectUtils.setField(packet, "c", dataArray);
+        // Make a new PacketPlayOutMultiBlockChange, and set the SectionPosition and blocks
+        Object packet = PacketAccessors.multiBlockChange.create();
+        Object sectionPosition = PacketAccessors.sectionPosition.newInstance(section.getX(), section.getY(), section.getZ());
+        PacketAccessors.multiBlockChange.setFields(packet, sectionPosition, shortArray, dataArray);
 
-        // Send the packet using more reflection stuff
-        ReflectUtils.runMethod(playerConnection, "sendPacket", new Class[]{ReflectUtils.getMcClass("Packet")}, new Object[]{packet});
+        return packet;
     }
 }
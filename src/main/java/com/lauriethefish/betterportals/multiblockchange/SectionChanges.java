@@ -0,0 +1,90 @@
+package com.lauriethefish.betterportals.multiblockchange;
+
+import java.util.Arrays;
+
+import com.lauriethefish.betterportals.network.PacketPriority;
+
+import lombok.Getter;
+
+// Stores the changed blocks in one chunk section, or one chunk before 1.16.2, as packed positions and block data
+// These are reused by the change manager after being sent, so that the arrays don't have to be made again every update
+@Getter
+public class SectionChanges {
+    private int x;
+    private int y; // Always 0 before 1.16.2, since changes are stored per chunk
+    private int z;
+    private PacketPriority priority;
+
+    // The positions are packed in the same way as in the multi block change packet for the server version
+    private short[] positions = new short[16];
+    private Object[] data = new Object[16];
+    private int size = 0;
+
+    // The slot plus one of each position that has been added, or 0 if it hasn't, so that a block added twice is only sent once
+    // Before 1.16.2 the positions are 16 bits, so this is split on the top 4 bits, and each part is only made once it's used
+    private int[][] slotIndex = new int[16][];
+
+    void setPosition(int x, int y, int z, PacketPriority priority)  {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.priority = priority;
+    }
+
+    // Adds a changed block, replacing the data if the position has already been added
+    void add(short position, Object newData)  {
+        int[] index = slotIndex[(position >> 12) & 0xF];
+        if(index == null)   {
+            index = new int[4096];
+            slotIndex[(position >> 12) & 0xF] = index;
+        }
+
+        int slot = index[position & 0xFFF] - 1;
+        if(slot != -1)  {
+            data[slot] = newData;
+            return;
+        }
+
+        if(size == positions.length)    {
+            short[] newPositions = new short[size * 2];
+            Object[] newDataArray = new Object[size * 2];
+            System.arraycopy(positions, 0, newPositions, 0, size);
+            System.arraycopy(data, 0, newDataArray, 0, size);
+            positions = newPositions;
+            data = newDataArray;
+        }
+
+        positions[size] = position;
+        data[size] = newData;
+        size++;
+        index[position & 0xFFF] = size;
+    }
+
+    // Clears the changes, keeping the arrays for the next time this section is used
+    // Only the added positions are reset in the index, and the data is removed so that block data isn't kept alive by unused sections
+    void clear()    {
+        for(int i = 0; i < size; i++)  {
+            slotIndex[(positions[i] >> 12) & 0xF][positions[i] & 0xFFF] = 0;
+        }
+        Arrays.fill(data, 0, size, null);
+        size = 0;
+    }
+
+    // Packs the coordinates of a section into a long, in the same way as minecraft's SectionPosition
+    public static long getKey(int x, int y, int z) {
+        return ((long) x & 0x3FFFFF) << 42 | ((long) z & 0x3FFFFF) << 20 | ((long) y & 0xFFFFF);
+    }
+
+    // Finds the coordinates from a key made by getKey
+    public static int getKeyX(long key) {
+        return (int) (key >> 42);
+    }
+
+    public static int getKeyY(long key) {
+        return (int) (key << 44 >> 44);
+    }
+
+    public static int getKeyZ(long key) {
+        return (int) (key << 22 >> 42);
+    }
+}
@@ -0,0 +1,100 @@
+package com.lauriethefish.betterportals.multiblockchange;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
+
+// Stores the multi block change packets made this tick, so that players seeing exactly the same changes share one packet
+// This happens when several players stand at the same place in front of a portal, and saves making and encoding the packet for each of them
+// It is only used while more than one player is viewing the portal, since otherwise the packets would be kept for nothing
+// The packets are only kept until the next tick, since the same changes are unlikely to be sent again after that
+public class SharedPacketCache {
+    // Identifies a set of changes by the section and the blocks in it
+    private static class ChangeSet {
+        private long sectionKey;
+        private boolean direct; // Direct buffers and NMS packets can't be swapped, so they are stored separately
+        private short[] positions;
+        private Object[] data;
+        private int size;
+        private int hash;
+
+        // If copy is false, the section's arrays are used directly, which is only safe for looking up packets
+        // Keys stored in the map must copy them, since the section's arrays are reused
+        ChangeSet(SectionChanges section, boolean direct, boolean copy)  {
+            this.sectionKey = SectionChanges.getKey(section.getX(), section.getY(), section.getZ());
+            this.direct = direct;
+            this.size = section.getSize();
+            this.positions = copy ? Arrays.copyOf(section.getPositions(), size) : section.getPositions();
+            this.data = copy ? Arrays.copyOf(section.getData(), size) : section.getData();
+
+            // The block data objects are shared by every block of the same type, so they are compared by identity
+            int result = Long.hashCode(sectionKey) * 31 + Boolean.hashCode(direct);
+            for(int i = 0; i < size; i++)   {
+                result = result * 31 + positions[i];
+                result = result * 31 + System.identityHashCode(data[i]);
+            }
+            hash = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ChangeSet))   {return false;}
+            ChangeSet other = (ChangeSet) o;
+            if(hash != other.hash || sectionKey != other.sectionKey || direct != other.direct || size != other.size)   {
+                return false;
+            }
+
+            for(int i = 0; i < size; i++)    {
+                if(positions[i] != other.positions[i] || data[i] != other.data[i])    {return false;}
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode()   {
+            return hash;
+        }
+    }
+
+    private static Map<ChangeSet, Object> packets = new ConcurrentHashMap<>();
+
+    // Gets the packet for the changes in section, making it with createPacket if no other player has been sent the same changes this tick
+    // Direct buffers are returned as a retained duplicate, so each player's channel can release its own reference once written
+    public static Object getPacket(SectionChanges section, boolean direct, Function<SectionChanges, Object> createPacket)   {
+        Object[] result = new Object[1];
+        // The packet is retained while holding the map's lock for this key, so that clear can't release it in between
+        packets.computeIfPresent(new ChangeSet(section, direct, false), (key, packet) -> {
+            result[0] = retain(packet);
+            return packet;
+        });
+        if(result[0] != null)   {return result[0];}
+
+        // Another player may have added the same changes since the lookup, in which case their packet is used
+        packets.compute(new ChangeSet(section, direct, true), (key, packet) -> {
+            if(packet == null)  {
+                packet = createPacket.apply(section);
+            }
+            result[0] = retain(packet);
+            return packet;
+        });
+        return result[0];
+    }
+
+    private static Object retain(Object packet) {
+        return packet instanceof ByteBuf ? ((ByteBuf) packet).retainedDuplicate() : packet;
+    }
+
+    // Releases all of the packets made last tick, called at the start of every tick
+    public static void clear()  {
+        for(ChangeSet key : packets.keySet())   {
+            packets.computeIfPresent(key, (k, packet) -> {
+                ReferenceCountUtil.release(packet);
+                return null;
+            });
+        }
+    }
+}
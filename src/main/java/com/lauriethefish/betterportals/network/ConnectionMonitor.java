@@ -0,0 +1,75 @@
+package com.lauriethefish.betterportals.network;
+
+import com.lauriethefish.betterportals.Config;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.entity.Player;
+
+import lombok.Getter;
+
+// Watches the ping and the amount of data waiting to be sent to a player, and lowers the quality of the portal view if their connection can't keep up
+// The quality is only raised again once the connection has been clear for a while, so that it doesn't keep switching back and forth
+public class ConnectionMonitor {
+    // The quality levels, from full quality at 0, to the lowest at the end
+    private static final double[] radiusMultipliers = {1.0, 0.75, 0.5, 0.35};
+    private static final int[] updateIntervals = {1, 2, 4, 8};
+    public static final int LOWEST_QUALITY = radiusMultipliers.length - 1;
+
+    // The number of checks in a row that the connection must be congested or clear for before the quality changes
+    private static final int CONGESTED_CHECKS_TO_LOWER = 2;
+    private static final int CLEAR_CHECKS_TO_RAISE = 5;
+
+    private Config config;
+    private Player player;
+    private PacketScheduler scheduler;
+
+    @Getter private volatile int qualityLevel = 0; // Read by the render threads
+    @Getter private int lastPing = 0;
+    @Getter private long lastBacklog = 0; // Bytes waiting to be written to the channel, plus those held back by the scheduler
+
+    private int congestedChecks = 0;
+    private int clearChecks = 0;
+
+    public ConnectionMonitor(Config config, Player player, PacketScheduler scheduler)  {
+        this.config = config;
+        this.player = player;
+        this.scheduler = scheduler;
+    }
+
+    // Checks the player's connection, and changes the quality level if it has been congested or clear for long enough
+    public void check() {
+        lastPing = (int) PacketAccessors.ping.get(PacketAccessors.getHandle(player));
+        lastBacklog = scheduler.getChannelBacklog() + scheduler.getDeferredBytes();
+
+        boolean congested = lastPing > config.congestedPing || lastBacklog > config.congestedBacklogBytes || !scheduler.isChannelWritable();
+        // The connection has to be well below the congested limits to count as clear
+        boolean clear = lastPing < config.recoveredPing && lastBacklog < config.congestedBacklogBytes / 4 && scheduler.isChannelWritable();
+
+        if(congested)   {
+            clearChecks = 0;
+            if(++congestedChecks >= CONGESTED_CHECKS_TO_LOWER && qualityLevel < LOWEST_QUALITY)  {
+                qualityLevel++;
+                congestedChecks = 0;
+            }
+        }   else if(clear)  {
+            congestedChecks = 0;
+            if(++clearChecks >= CLEAR_CHECKS_TO_RAISE && qualityLevel > 0) {
+                qualityLevel--;
+                clearChecks = 0;
+            }
+        }   else    {
+            congestedChecks = 0;
+            clearChecks = 0;
+        }
+    }
+
+    // Gets the fraction of the portal effect radius that is rendered at the current quality
+    public double getRadiusMultiplier()   {
+        return radiusMultipliers[qualityLevel];
+    }
+
+    // Gets how many ticks apart the portal view is rendered at the current quality
+    public int getUpdateInterval()  {
+        return updateIntervals[qualityLevel];
+    }
+}
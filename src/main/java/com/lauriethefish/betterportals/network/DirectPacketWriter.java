@@ -0,0 +1,218 @@
+package com.lauriethefish.betterportals.network;
+
+import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager_Old;
+import com.lauriethefish.betterportals.multiblockchange.SectionChanges;
+import com.lauriethefish.betterportals.reflection.MethodAccessor;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.entity.Player;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+
+// Encodes the packets that we send most often straight into buffers from the player's channel, without making NMS packet objects
+// The buffers pass through the NMS encoder unchanged when sent, then get compressed and framed like any other packet
+// The packet IDs are found from the server's protocol when the plugin is enabled, and the formats are the same from 1.13 to 1.16
+// If anything isn't supported, forPlayer returns null, and packets are sent through NMS instead
+public class DirectPacketWriter {
+    private static boolean enabled = false;
+    // The multi block change format changed in 1.16.2 to send chunk sections instead of chunks
+    private static boolean sectionMultiBlockChange;
+
+    private static int multiBlockChangeId;
+    private static int blockChangeId;
+    private static int relativeMoveId;
+    private static int relativeMoveLookId;
+    private static int lookId;
+    private static int entityDestroyId;
+    private static int headRotationId;
+
+    private static MethodAccessor getCombinedId;
+    private static Class<?> packetEncoderClass;
+
+    private Channel channel;
+
+    private DirectPacketWriter(Channel channel)   {
+        this.channel = channel;
+    }
+
+    // Finds the IDs of the packets for the current version, if directPacketEncoding is on in the config
+    // This must be called after PacketAccessors.load
+    public static void load(boolean enable)  {
+        enabled = false;
+        if(!enable) {return;}
+
+        try {
+            sectionMultiBlockChange = ReflectUtils.multiBlockChangeImpl != MultiBlockChangeManager_Old.class;
+            // The constructors take longs in 1.13, but the coordinates are still sent as shorts
+            Object zero = ReflectUtils.useNewEntitySpawnAndMoveImpl ? (Object) (short) 0 : (Object) 0L;
+
+            multiBlockChangeId = getPacketId(PacketAccessors.multiBlockChange.create());
+            blockChangeId = getPacketId(PacketAccessors.blockChange.create());
+            relativeMoveId = getPacketId(PacketAccessors.relativeMove.create(0, zero, zero, zero, true));
+            relativeMoveLookId = getPacketId(PacketAccessors.relativeMoveLook.create(0, zero, zero, zero, (byte) 0, (byte) 0, true));
+            lookId = getPacketId(PacketAccessors.look.create(0, (byte) 0, (byte) 0, true));
+            entityDestroyId = getPacketId(PacketAccessors.entityDestroy.create());
+            headRotationId = getPacketId(PacketAccessors.headRotation.create());
+
+            getCombinedId = new MethodAccessor(ReflectUtils.getMcClass("Block"), "getCombinedId", PacketAccessors.blockDataClass);
+            packetEncoderClass = ReflectUtils.getMcClass("PacketEncoder");
+            enabled = true;
+        }   catch(RuntimeException ex)  {
+            ex.printStackTrace();
+        }
+    }
+
+    // Finds the ID that the server sends the packet with in the play state
+    private static int getPacketId(Object packet)   {
+        Class<?> protocolClass = ReflectUtils.getMcClass("EnumProtocol");
+        Class<?> directionClass = ReflectUtils.getMcClass("EnumProtocolDirection");
+        Object play = protocolClass.getEnumConstants()[getEnumIndex(protocolClass, "PLAY")];
+        Object clientbound = directionClass.getEnumConstants()[getEnumIndex(directionClass, "CLIENTBOUND")];
+
+        MethodAccessor getId = new MethodAccessor(protocolClass, "a", directionClass, ReflectUtils.getMcClass("Packet"));
+        Integer id = (Integer) getId.invoke(play, clientbound, packet);
+        if(id == null)  {
+            throw new IllegalStateException("No packet ID found for " + packet.getClass().getName());
+        }
+        return id;
+    }
+
+    private static int getEnumIndex(Class<?> enumClass, String name)   {
+        Object[] constants = enumClass.getEnumConstants();
+        for(int i = 0; i < constants.length; i++)   {
+            if(((Enum<?>) constants[i]).name().equals(name))    {
+                return i;
+            }
+        }
+        throw new IllegalStateException("No constant " + name + " in " + enumClass.getName());
+    }
+
+    // Gets a writer for the player's channel, or null if packets for this player must be sent through NMS
+    public static DirectPacketWriter forPlayer(Player player)  {
+        if(!enabled)    {return null;}
+
+        Object networkManager = PacketAccessors.networkManager.get(PacketAccessors.getPlayerConnection(player));
+        Channel channel = (Channel) PacketAccessors.channel.get(networkManager);
+
+        // Plugins like ViaVersion replace the encoder to translate packets for other versions, which our packets would skip
+        ChannelHandler encoder = channel.pipeline().get("encoder");
+        if(encoder == null || !packetEncoderClass.isInstance(encoder))   {
+            return null;
+        }
+        return new DirectPacketWriter(channel);
+    }
+
+    // Allocates a buffer from the channel's pool, with the packet ID written
+    private ByteBuf startPacket(int id) {
+        ByteBuf buffer = channel.alloc().buffer();
+        writeVarInt(buffer, id);
+        return buffer;
+    }
+
+    // Encodes a multi block change packet containing the changes in the section, or the chunk before 1.16.2
+    public ByteBuf encodeMultiBlockChange(SectionChanges section)  {
+        ByteBuf buffer = startPacket(multiBlockChangeId);
+        short[] positions = section.getPositions();
+        Object[] data = section.getData();
+        if(sectionMultiBlockChange) {
+            buffer.writeLong(SectionChanges.getKey(section.getX(), section.getY(), section.getZ()));
+            buffer.writeBoolean(false); // This is what the NMS packet sends when made with its no-args constructor
+            writeVarInt(buffer, section.getSize());
+            for(int i = 0; i < section.getSize(); i++)   {
+                writeVarLong(buffer, (long) getBlockId(data[i]) << 12 | positions[i]);
+            }
+        }   else    {
+            buffer.writeInt(section.getX());
+            buffer.writeInt(section.getZ());
+            writeVarInt(buffer, section.getSize());
+            // The positions are packed as x << 12 | z << 8 | y, which is sent as two bytes
+            for(int i = 0; i < section.getSize(); i++)   {
+                buffer.writeShort(positions[i]);
+                writeVarInt(buffer, getBlockId(data[i]));
+            }
+        }
+        return buffer;
+    }
+
+    public ByteBuf encodeBlockChange(int x, int y, int z, Object blockData)  {
+        ByteBuf buffer = startPacket(blockChangeId);
+        // The order of the coordinates in a packed block position changed in 1.14
+        if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
+            buffer.writeLong(((long) x & 0x3FFFFFF) << 38 | ((long) z & 0x3FFFFFF) << 12 | ((long) y & 0xFFF));
+        }   else    {
+            buffer.writeLong(((long) x & 0x3FFFFFF) << 38 | ((long) y & 0xFFF) << 26 | ((long) z & 0x3FFFFFF));
+        }
+        writeVarInt(buffer, getBlockId(blockData));
+        return buffer;
+    }
+
+    public ByteBuf encodeRelativeMove(int entityId, short x, short y, short z)  {
+        ByteBuf buffer = startPacket(relativeMoveId);
+        writeVarInt(buffer, entityId);
+        buffer.writeShort(x);
+        buffer.writeShort(y);
+        buffer.writeShort(z);
+        buffer.writeBoolean(true);
+        return buffer;
+    }
+
+    public ByteBuf encodeRelativeMoveLook(int entityId, short x, short y, short z, byte yaw, byte pitch)  {
+        ByteBuf buffer = startPacket(relativeMoveLookId);
+        writeVarInt(buffer, entityId);
+        buffer.writeShort(x);
+        buffer.writeShort(y);
+        buffer.writeShort(z);
+        buffer.writeByte(yaw);
+        buffer.writeByte(pitch);
+        buffer.writeBoolean(true);
+        return buffer;
+    }
+
+    public ByteBuf encodeLook(int entityId, byte yaw, byte pitch)   {
+        ByteBuf buffer = startPacket(lookId);
+        writeVarInt(buffer, entityId);
+        buffer.writeByte(yaw);
+        buffer.writeByte(pitch);
+        buffer.writeBoolean(true);
+        return buffer;
+    }
+
+    public ByteBuf encodeEntityDestroy(int... entityIds)  {
+        ByteBuf buffer = startPacket(entityDestroyId);
+        writeVarInt(buffer, entityIds.length);
+        for(int entityId : entityIds)   {
+            writeVarInt(buffer, entityId);
+        }
+        return buffer;
+    }
+
+    public ByteBuf encodeHeadRotation(int entityId, byte headRotation)  {
+        ByteBuf buffer = startPacket(headRotationId);
+        writeVarInt(buffer, entityId);
+        buffer.writeByte(headRotation);
+        return buffer;
+    }
+
+    private static int getBlockId(Object blockData) {
+        return (int) getCombinedId.invoke(null, blockData);
+    }
+
+    static void writeVarInt(ByteBuf buffer, int value)  {
+        while((value & ~0x7F) != 0)   {
+            buffer.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte(value);
+    }
+
+    static void writeVarLong(ByteBuf buffer, long value)  {
+        while((value & ~0x7FL) != 0)   {
+            buffer.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte((int) value);
+    }
+}
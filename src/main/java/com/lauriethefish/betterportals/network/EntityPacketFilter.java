@@ -0,0 +1,133 @@
+package com.lauriethefish.betterportals.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.reflection.FieldAccessor;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.inventory.EntityEquipment;
+import org.bukkit.inventory.ItemStack;
+
+// Hides entities behind portals by making them invisible to the player, then stopping the server's packets for them in the channel handler
+// This is used instead of destroying the entity and spawning it again, which means sending a spawn, metadata and equipment every time it is shown
+// Only living entities without any equipment, name tag or glowing outline are hidden like this, since those are still drawn on invisible entities
+public class EntityPacketFilter {
+    private static final byte INVISIBLE_FLAG = 0x20;
+
+    private static boolean enabled = false;
+
+    // The packets that are stopped for hidden entities, and the fields containing their entity ID
+    private static Class<?>[] filteredPackets;
+    private static FieldAccessor[] entityIdFields;
+    // The packets that spawn or destroy entities, which mean that an entity is no longer hidden on the client
+    private static Class<?>[] spawnPackets;
+    private static FieldAccessor[] spawnIdFields;
+    private static Class<?> destroyPacket;
+    private static FieldAccessor destroyIdsField;
+
+    // Finds the packets to filter, if entityPacketFiltering is on in the config
+    // This must be called after PacketAccessors.load
+    public static void load(boolean enable)  {
+        enabled = false;
+        // The accessors for changing the entity flags in metadata packets are needed to make entities invisible
+        if(!enable || !PacketAccessors.metadataDiffing) {return;}
+
+        try {
+            // Relative move and look packets are all subclasses of PacketPlayOutEntity
+            String[] packetNames = new String[]{"PacketPlayOutEntity", "PacketPlayOutEntityTeleport", "PacketPlayOutEntityHeadRotation",
+                                    "PacketPlayOutEntityMetadata", "PacketPlayOutEntityEquipment", "PacketPlayOutEntityVelocity"};
+            filteredPackets = new Class[packetNames.length];
+            entityIdFields = new FieldAccessor[packetNames.length];
+            for(int i = 0; i < packetNames.length; i++) {
+                filteredPackets[i] = ReflectUtils.getMcClass(packetNames[i]);
+                entityIdFields[i] = new FieldAccessor(filteredPackets[i], "a");
+            }
+
+            // Armor stands are spawned with PacketPlayOutSpawnEntity, and players with PacketPlayOutNamedEntitySpawn
+            String[] spawnNames = new String[]{"PacketPlayOutSpawnEntity", "PacketPlayOutSpawnEntityLiving", "PacketPlayOutNamedEntitySpawn"};
+            spawnPackets = new Class[spawnNames.length];
+            spawnIdFields = new FieldAccessor[spawnNames.length];
+            for(int i = 0; i < spawnNames.length; i++) {
+                spawnPackets[i] = ReflectUtils.getMcClass(spawnNames[i]);
+                spawnIdFields[i] = new FieldAccessor(spawnPackets[i], "a");
+            }
+            destroyPacket = ReflectUtils.getMcClass("PacketPlayOutEntityDestroy");
+            destroyIdsField = new FieldAccessor(destroyPacket, "a");
+            enabled = true;
+        }   catch(RuntimeException ex)  {
+            ex.printStackTrace();
+        }
+    }
+
+    public static boolean isEnabled()   {
+        return enabled;
+    }
+
+    // Returns the ID of the entity that the packet moves or updates, or -1 if the packet isn't one that is filtered
+    public static int getEntityId(Object packet)   {
+        for(int i = 0; i < filteredPackets.length; i++) {
+            if(filteredPackets[i].isInstance(packet))   {
+                return (int) entityIdFields[i].get(packet);
+            }
+        }
+        return -1;
+    }
+
+    // Stops filtering the entities that the packet destroys or spawns again
+    // A destroyed entity's ID may never be shown again, and a respawned entity is visible again on the client, so its packets must not be stopped
+    public static void removeStaleIds(Object packet, Set<Integer> filteredIds)  {
+        if(destroyPacket.isInstance(packet))    {
+            for(int entityId : (int[]) destroyIdsField.get(packet)) {
+                filteredIds.remove(entityId);
+            }
+            return;
+        }
+
+        for(int i = 0; i < spawnPackets.length; i++)    {
+            if(spawnPackets[i].isInstance(packet))  {
+                filteredIds.remove((int) spawnIdFields[i].get(packet));
+                return;
+            }
+        }
+    }
+
+    // Entities can only be made invisible if nothing is drawn on them while invisible
+    public static boolean canHide(Entity entity)   {
+        if(!enabled || !(entity instanceof LivingEntity))  {return false;}
+        // Name tags and glowing outlines are drawn even if the entity is invisible, for instance on hologram armor stands
+        if(entity.isCustomNameVisible() || entity.isGlowing())  {return false;}
+
+        EntityEquipment equipment = ((LivingEntity) entity).getEquipment();
+        if(equipment == null)   {return true;}
+        for(ItemStack item : new ItemStack[]{equipment.getItemInMainHand(), equipment.getItemInOffHand(), equipment.getBoots(),
+                                                equipment.getLeggings(), equipment.getChestplate(), equipment.getHelmet()})   {
+            if(item != null && item.getType() != Material.AIR)  {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Makes a metadata packet that only sets the entity's flags, with the invisible flag added
+    public static Object createInvisibleMetadata(Object nmsEntity, int entityId)  {
+        Object dataWatcher = PacketAccessors.dataWatcher.get(nmsEntity);
+        Object packet = PacketAccessors.metadata.create(entityId, dataWatcher, true);
+
+        // The flags are always at index 0
+        List<Object> items = new ArrayList<>();
+        for(Object item : (List<?>) PacketAccessors.metadataItems.get(packet))  {
+            Object object = PacketAccessors.getItemObject.invoke(item);
+            if((int) PacketAccessors.getObjectIndex.invoke(object) == 0) {
+                items.add(PacketAccessors.dataWatcherItem.newInstance(object, (byte) ((byte) PacketAccessors.getItemValue.invoke(item) | INVISIBLE_FLAG)));
+            }
+        }
+        PacketAccessors.metadataItems.set(packet, items);
+        return packet;
+    }
+}
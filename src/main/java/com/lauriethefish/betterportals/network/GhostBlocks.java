@@ -0,0 +1,58 @@
+package com.lauriethefish.betterportals.network;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.lauriethefish.betterportals.math.MathUtils;
+
+// Stores the blocks that a player currently sees differently to the world, in a bucket for each chunk
+// The channel handler looks these up when the server sends block updates, so that only the blocks in the updated chunk need to be found
+// Blocks are only changed by the render threads while locking the player's PlayerData, but are read from the netty threads
+public class GhostBlocks {
+    private Map<Long, Map<Long, Object>> chunks = new ConcurrentHashMap<>();
+
+    private static long getChunkKey(int chunkX, int chunkZ)   {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public void put(int x, int y, int z, Object data)    {
+        long position = MathUtils.packBlockPosition(x, y, z);
+        chunks.compute(getChunkKey(x >> 4, z >> 4), (key, chunk) -> {
+            if(chunk == null)   {
+                chunk = new ConcurrentHashMap<>();
+            }
+            chunk.put(position, data);
+            return chunk;
+        });
+    }
+
+    public void remove(int x, int y, int z)  {
+        long position = MathUtils.packBlockPosition(x, y, z);
+        // Empty chunks are removed so that isEmpty stays cheap
+        chunks.computeIfPresent(getChunkKey(x >> 4, z >> 4), (key, chunk) -> {
+            chunk.remove(position);
+            return chunk.isEmpty() ? null : chunk;
+        });
+    }
+
+    // Gets the ghost block at the position, or null if the player sees the block from the world
+    public Object get(int x, int y, int z)  {
+        Map<Long, Object> chunk = chunks.get(getChunkKey(x >> 4, z >> 4));
+        return chunk == null ? null : chunk.get(MathUtils.packBlockPosition(x, y, z));
+    }
+
+    // Gets the ghost blocks in one chunk, keyed by MathUtils.packBlockPosition
+    public Map<Long, Object> getChunk(int chunkX, int chunkZ)   {
+        Map<Long, Object> chunk = chunks.get(getChunkKey(chunkX, chunkZ));
+        return chunk == null ? Collections.emptyMap() : chunk;
+    }
+
+    public boolean isEmpty()    {
+        return chunks.isEmpty();
+    }
+
+    public void clear() {
+        chunks.clear();
+    }
+}
@@ -0,0 +1,9 @@
+package com.lauriethefish.betterportals.network;
+
+// Decides whether a packet sent by the plugin can be held back when a player has used up their bandwidth budget for the tick
+public enum PacketPriority {
+    // Always sent straight away, in the order they were made. Used for entity packets and ghost blocks close to the portal window
+    HIGH,
+    // Sent once there is space in the budget, in the order they were made. Used for ghost blocks further from the portal window
+    LOW
+}
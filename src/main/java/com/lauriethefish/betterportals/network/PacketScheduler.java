@@ -0,0 +1,210 @@
+package com.lauriethefish.betterportals.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.entity.Player;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundInvoker;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
+
+// Sends every packet that the plugin makes for a player, which can be either NMS packets or buffers from DirectPacketWriter
+// Once the player has been sent more than the budget in a tick, low priority packets are held back until a later tick
+// Direct buffers can also be collected and written with one flush per tick, which means fewer writes to the socket
+// This is used from the main thread, the render threads and the async task, so all methods are synchronized
+public class PacketScheduler {
+    // Used as the size of NMS packets when there is no budget, or if they can't be encoded to measure them
+    private static final int FALLBACK_PACKET_SIZE = 16;
+
+    private static class QueuedPacket {
+        public Object packet;
+        public int size;
+        public QueuedPacket(Object packet, int size)    {
+            this.packet = packet; this.size = size;
+        }
+    }
+
+    private Object playerConnection;
+    private Channel channel;
+    // Where packets are written, either the channel or the context of our handler in the pipeline
+    // Writing to the handler's context means that our packets skip the handler, which changes packets sent by the server
+    private ChannelOutboundInvoker writeTarget;
+
+    private int budget; // The number of bytes that can be sent each tick, or 0 for no limit
+    private int sentThisTick = 0;
+    // NMS packets aren't encoded until they reach the channel, so they are encoded into this buffer to measure them
+    private ByteBuf measureBuffer = null;
+
+    // If this is true, direct buffers are collected and written to the channel together when flush is called, instead of being flushed one at a time
+    // NMS packets are still sent through the player's connection, so only buffers from DirectPacketWriter are batched
+    private boolean batchWrites;
+    private List<ByteBuf> pendingWrites = new ArrayList<>();
+
+    private ArrayDeque<QueuedPacket> deferred = new ArrayDeque<>();
+    @Getter private int deferredBytes = 0; // The size of the packets that are currently held back
+    @Getter private long totalDeferredPackets = 0; // The number of packets that have been held back since the player joined
+    @Getter private long totalDeferredBytes = 0;
+
+    public PacketScheduler(Player player, int budget, boolean batchWrites)   {
+        this.budget = budget;
+        this.batchWrites = batchWrites;
+        playerConnection = PacketAccessors.getPlayerConnection(player);
+        channel = (Channel) PacketAccessors.channel.get(PacketAccessors.networkManager.get(playerConnection));
+        writeTarget = channel;
+    }
+
+    // Writes packets after the handler with this context in the pipeline, or to the channel if null
+    public synchronized void setWriteContext(ChannelHandlerContext context)   {
+        writeTarget = context == null ? channel : context;
+    }
+
+    public synchronized void send(Object packet, PacketPriority priority)    {
+        send(packet, getSize(packet), priority);
+    }
+
+    // Finds the number of bytes that the packet will take up once encoded, not including the packet ID and length
+    private int getSize(Object packet)  {
+        if(packet instanceof ByteBuf)   {
+            return ((ByteBuf) packet).readableBytes();
+        }
+        // The size is only used for keeping to the budget, so there's no need to encode the packet without one
+        if(budget <= 0) {return FALLBACK_PACKET_SIZE;}
+
+        if(measureBuffer == null)   {
+            measureBuffer = Unpooled.buffer();
+        }
+        measureBuffer.clear();
+        try {
+            PacketAccessors.writePacket.invoke(packet, PacketAccessors.packetSerializer.newInstance(measureBuffer));
+            return measureBuffer.readableBytes();
+        }   catch(RuntimeException ex)  {
+            return FALLBACK_PACKET_SIZE;
+        }
+    }
+
+    // Sends the packet now, or queues it if it is low priority and the budget for this tick has been used up
+    // Low priority packets are also queued if there are already some waiting, so that they are sent in order
+    public synchronized void send(Object packet, int size, PacketPriority priority)    {
+        if(priority == PacketPriority.LOW && budget > 0 && (sentThisTick >= budget || !deferred.isEmpty()))    {
+            deferred.add(new QueuedPacket(packet, size));
+            deferredBytes += size;
+            totalDeferredPackets++;
+            totalDeferredBytes += size;
+            return;
+        }
+
+        write(packet, size);
+    }
+
+    // Sends high priority packets that the client should handle together, for instance the spawn, metadata and equipment of an entity
+    // These go through the same path as any other packet, but are written one after another without any other packets from the plugin between them
+    public synchronized void sendGroup(List<Object> packets)    {
+        for(Object packet : packets)    {
+            write(packet, getSize(packet));
+        }
+    }
+
+    // Resets the budget and sends as many of the held back packets as it allows, called at the start of every tick
+    public synchronized void startTick()    {
+        sentThisTick = 0;
+        // At least one packet is sent each tick, even if it's bigger than the budget
+        while(!deferred.isEmpty() && sentThisTick < budget)   {
+            sendNextDeferred();
+        }
+    }
+
+    // Sends all of the held back packets regardless of the budget
+    // This is used before sending packets that must arrive after them, for instance whole chunk sections
+    public synchronized void flushDeferred()    {
+        while(!deferred.isEmpty())  {
+            sendNextDeferred();
+        }
+    }
+
+    // Throws away all of the held back packets, used when they are no longer needed, for instance when the ghost blocks are reset
+    public synchronized void clearDeferred()    {
+        for(QueuedPacket queued : deferred) {
+            ReferenceCountUtil.release(queued.packet); // Direct buffers must be released if they aren't sent
+        }
+        deferred.clear();
+        deferredBytes = 0;
+    }
+
+    // Writes all of the buffers sent since the last flush, then flushes the channel once
+    // This is done in one task on the channel's event loop, so the calling thread never waits for the channel
+    public synchronized void flush()    {
+        if(pendingWrites.isEmpty()) {return;}
+
+        List<ByteBuf> packets = pendingWrites;
+        pendingWrites = new ArrayList<>();
+        ChannelOutboundInvoker target = writeTarget;
+        channel.eventLoop().execute(() -> {
+            // Direct buffers pass through the encoder unchanged
+            for(ByteBuf packet : packets)    {
+                target.write(packet, channel.voidPromise());
+            }
+            target.flush();
+        });
+    }
+
+    // Throws away everything that hasn't been written yet, called when the player leaves
+    public synchronized void close()    {
+        clearDeferred();
+        for(ByteBuf packet : pendingWrites)  {
+            packet.release();
+        }
+        pendingWrites.clear();
+        if(measureBuffer != null)   {
+            measureBuffer.release();
+            measureBuffer = null;
+        }
+    }
+
+    // Gets the number of bytes written to the channel that the socket hasn't taken yet
+    public long getChannelBacklog() {
+        ChannelOutboundBuffer buffer = channel.unsafe().outboundBuffer();
+        return buffer == null ? 0 : buffer.totalPendingWriteBytes(); // The buffer is null once the channel is closed
+    }
+
+    public boolean isChannelWritable()  {
+        return channel.isWritable();
+    }
+
+    public synchronized int getQueueDepth() {
+        return deferred.size();
+    }
+
+    private void sendNextDeferred() {
+        QueuedPacket queued = deferred.poll();
+        deferredBytes -= queued.size;
+        write(queued.packet, queued.size);
+    }
+
+    private void write(Object packet, int size)   {
+        sentThisTick += size;
+        if(batchWrites) {
+            if(packet instanceof ByteBuf)   {
+                pendingWrites.add((ByteBuf) packet);
+                return;
+            }
+            // The connection writes NMS packets in a task on the event loop, so the buffers before this one are written first to keep them in order
+            flush();
+        }
+
+        if(packet instanceof ByteBuf || writeTarget != channel)   {
+            // The buffer is released by netty once it has been written
+            writeTarget.writeAndFlush(packet, channel.voidPromise());
+        }   else    {
+            PacketAccessors.sendPacket(playerConnection, packet);
+        }
+    }
+}
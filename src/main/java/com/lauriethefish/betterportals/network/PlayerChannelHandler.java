@@ -0,0 +1,175 @@
+package com.lauriethefish.betterportals.network;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.Set;
+
+import com.lauriethefish.betterportals.BetterPortals;
+import com.lauriethefish.betterportals.PlayerData;
+import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.math.MathUtils;
+import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager;
+import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager_Old;
+import com.lauriethefish.betterportals.reflection.PacketAccessors;
+
+import org.bukkit.util.Vector;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+// Sits in the player's netty pipeline before the NMS packet handler, so that we can see packets as they are received
+// This is used to re-render the portal view as soon as the player moves, instead of waiting for the next tick
+// It also sees the packets sent by the server, so that block updates can be stopped from overwriting the ghost blocks,
+// and so that packets for entities hidden by EntityPacketFilter can be stopped
+public class PlayerChannelHandler extends ChannelDuplexHandler {
+    private static final String HANDLER_NAME = "betterportals_handler";
+
+    // The fields are found here instead of with ReflectUtils.getField, since the field cache isn't safe to use from the netty threads
+    private static final Class<?> flyingPacketClass = ReflectUtils.getMcClass("PacketPlayInFlying");
+    private static final Field hasPosField = ReflectUtils.findField(null, "hasPos", flyingPacketClass);
+    private static final Field xField = ReflectUtils.findField(null, "x", flyingPacketClass);
+    private static final Field yField = ReflectUtils.findField(null, "y", flyingPacketClass);
+    private static final Field zField = ReflectUtils.findField(null, "z", flyingPacketClass);
+
+    private BetterPortals pl;
+    private PlayerData playerData;
+    private Channel channel;
+
+    // Makes the packets that put the ghost blocks back after a chunk or multi block change from the server
+    private MultiBlockChangeManager repairManager;
+
+    public PlayerChannelHandler(BetterPortals pl, PlayerData playerData)  {
+        this.pl = pl;
+        this.playerData = playerData;
+        if(pl.config.protectGhostBlocks)    {
+            repairManager = MultiBlockChangeManager.createInstance(playerData.getPlayer(), playerData.getPacketScheduler());
+        }
+    }
+
+    // Adds this handler to the player's pipeline
+    public void inject()    {
+        channel = ReflectUtils.getPlayerChannel(playerData.getPlayer());
+        channel.eventLoop().execute(() -> {
+            if(channel.pipeline().get(HANDLER_NAME) == null)    {
+                channel.pipeline().addBefore("packet_handler", HANDLER_NAME, this);
+            }
+        });
+    }
+
+    // Removes this handler from the player's pipeline, called when the plugin is disabled
+    public void remove()    {
+        if(channel == null) {return;}
+        channel.eventLoop().execute(() -> {
+            if(channel.pipeline().get(HANDLER_NAME) != null)    {
+                channel.pipeline().remove(HANDLER_NAME);
+            }
+        });
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        // Our own packets are written after this handler, so that they aren't changed by it
+        if(pl.config.protectGhostBlocks || EntityPacketFilter.isEnabled())    {
+            playerData.getPacketScheduler().setWriteContext(ctx);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx)   {
+        playerData.getPacketScheduler().setWriteContext(null);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception   {
+        if(pl.config.movementPacketRendering && flyingPacketClass.isInstance(msg))  {
+            onMovementPacket(msg);
+        }
+
+        super.channelRead(ctx, msg);
+    }
+
+    // Queues a re-render of the portal view at the new position, if the packet contains one
+    private void onMovementPacket(Object packet) throws IllegalAccessException {
+        if(!hasPosField.getBoolean(packet)) {return;}
+
+        Vector position = new Vector(xField.getDouble(packet), yField.getDouble(packet), zField.getDouble(packet));
+        // Only queue a new update if there isn't one waiting already, otherwise the waiting one will just use the newest position
+        if(playerData.getPendingMovement().getAndSet(position) == null)    {
+            pl.getPortalUpdator().getBlockRenderer().queueMovementUpdate(playerData);
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception  {
+        // Movement and metadata for hidden entities would show them again, so are never sent
+        Set<Integer> filteredEntityIds = playerData.getEntityManipulator().getFilteredEntityIds();
+        if(!filteredEntityIds.isEmpty())    {
+            EntityPacketFilter.removeStaleIds(msg, filteredEntityIds);
+            if(filteredEntityIds.contains(EntityPacketFilter.getEntityId(msg)))  {
+                ReferenceCountUtil.release(msg);
+                promise.setSuccess();
+                return;
+            }
+        }
+
+        GhostBlocks ghostBlocks = playerData.getGhostBlocks();
+        if(!pl.config.protectGhostBlocks || ghostBlocks.isEmpty())  {
+            super.write(ctx, msg, promise);
+            return;
+        }
+
+        if(PacketAccessors.blockChange.isInstance(msg))    {
+            // Send the ghost block instead if the server is changing a block that the player sees through the portal
+            Object position = PacketAccessors.blockChange.getField(msg, 0);
+            Object ghostData = ghostBlocks.get((int) PacketAccessors.getX.invoke(position), (int) PacketAccessors.getY.invoke(position),
+                                                    (int) PacketAccessors.getZ.invoke(position));
+            if(ghostData != null)   {
+                Object packet = PacketAccessors.blockChange.create();
+                PacketAccessors.blockChange.setFields(packet, position, ghostData);
+                msg = packet;
+            }
+            super.write(ctx, msg, promise);
+        }   else if(PacketAccessors.multiBlockChange.isInstance(msg))   {
+            // The changes are sent as they are, then the ghost blocks in the same area are sent again straight after
+            Object area = PacketAccessors.multiBlockChange.getField(msg, 0);
+            super.write(ctx, msg, promise);
+            if(ReflectUtils.multiBlockChangeImpl == MultiBlockChangeManager_Old.class)  {
+                repairArea(ctx, ghostBlocks, (int) PacketAccessors.chunkX.get(area), -1, (int) PacketAccessors.chunkZ.get(area));
+            }   else    {
+                repairArea(ctx, ghostBlocks, (int) PacketAccessors.getX.invoke(area), (int) PacketAccessors.getY.invoke(area), (int) PacketAccessors.getZ.invoke(area));
+            }
+        }   else if(PacketAccessors.mapChunk.isInstance(msg))   {
+            int chunkX = (int) PacketAccessors.mapChunk.getField(msg, 0);
+            int chunkZ = (int) PacketAccessors.mapChunk.getField(msg, 1);
+            super.write(ctx, msg, promise);
+            repairArea(ctx, ghostBlocks, chunkX, -1, chunkZ);
+        }   else    {
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    // Sends the ghost blocks in the chunk again, or only those in one section if sectionY isn't -1
+    // These are written after this handler, so they are sent straight after the packet that overwrote them
+    private void repairArea(ChannelHandlerContext ctx, GhostBlocks ghostBlocks, int chunkX, int sectionY, int chunkZ)    {
+        // Only the ghost blocks in the chunk are looked at, so this doesn't depend on how many the player can see elsewhere
+        Map<Long, Object> chunk = ghostBlocks.getChunk(chunkX, chunkZ);
+        if(chunk.isEmpty()) {return;}
+
+        synchronized(repairManager) {
+            for(Map.Entry<Long, Object> entry : chunk.entrySet()) {
+                long key = entry.getKey();
+                int y = MathUtils.unpackBlockY(key);
+                if(sectionY == -1 || y >> 4 == sectionY)  {
+                    repairManager.addChange(new Vector(MathUtils.unpackBlockX(key), y, MathUtils.unpackBlockZ(key)), entry.getValue());
+                }
+            }
+
+            for(Object packet : repairManager.createPackets())  {
+                ctx.write(packet, ctx.voidPromise());
+            }
+        }
+    }
+}
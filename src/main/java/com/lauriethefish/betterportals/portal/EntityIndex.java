@@ -0,0 +1,168 @@
+package com.lauriethefish.betterportals.portal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+
+import io.netty.util.collection.LongObjectHashMap;
+
+// Keeps the entities near active portals in buckets for each chunk, so that the boxes around portals can be found without World.getNearbyEntities
+// Chunks are tracked while portals query them, and are filled from the chunk's entity list when they start being tracked
+// After that, spawned entities are added by EntityIndexEvents, and tracked entities are moved between chunks every tick
+// Entities that walk or teleport into a tracked chunk from one that isn't tracked are found when the chunk is refreshed
+// This is only used from the main thread
+public class EntityIndex {
+    // How many ticks a chunk is kept after it was last queried
+    private static final int UNTRACK_DELAY = 100;
+    // How often the tracked chunks are filled again from their entity lists
+    private static final int REFRESH_INTERVAL = 20;
+
+    private static class TrackedChunk {
+        public Set<Entity> entities = new HashSet<>();
+        public int lastQueried;
+        public int lastRefreshed;
+    }
+
+    private Map<World, LongObjectHashMap<TrackedChunk>> worlds = new HashMap<>();
+    // The chunk that each tracked entity was in when it was last checked
+    private Map<Entity, TrackedChunk> entityChunks = new HashMap<>();
+    private Location reusedLocation = new Location(null, 0, 0, 0);
+    private int currentTick = 0;
+
+    private static long getKey(int chunkX, int chunkZ)  {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static long getKey(Location location)   {
+        return getKey(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+    }
+
+    // Finds the entities with their location within the box of the given size on each side of center
+    public List<Entity> getNearbyEntities(Location center, double x, double y, double z)   {
+        World world = center.getWorld();
+        LongObjectHashMap<TrackedChunk> chunks = worlds.computeIfAbsent(world, w -> new LongObjectHashMap<>());
+
+        List<Entity> result = new ArrayList<>();
+        int minX = (int) Math.floor(center.getX() - x) >> 4; int maxX = (int) Math.floor(center.getX() + x) >> 4;
+        int minZ = (int) Math.floor(center.getZ() - z) >> 4; int maxZ = (int) Math.floor(center.getZ() + z) >> 4;
+        for(int chunkX = minX; chunkX <= maxX; chunkX++)    {
+            for(int chunkZ = minZ; chunkZ <= maxZ; chunkZ++)    {
+                TrackedChunk chunk = chunks.get(getKey(chunkX, chunkZ));
+                if(chunk == null)   {
+                    // Entities in unloaded chunks aren't found by World.getNearbyEntities either
+                    if(!world.isChunkLoaded(chunkX, chunkZ))    {continue;}
+
+                    chunk = new TrackedChunk();
+                    chunks.put(getKey(chunkX, chunkZ), chunk);
+                    refreshChunk(world.getChunkAt(chunkX, chunkZ), chunk);
+                }
+                chunk.lastQueried = currentTick;
+
+                for(Entity entity : chunk.entities) {
+                    Location location = entity.getLocation(reusedLocation);
+                    if(Math.abs(location.getX() - center.getX()) <= x && Math.abs(location.getY() - center.getY()) <= y
+                                && Math.abs(location.getZ() - center.getZ()) <= z)  {
+                        result.add(entity);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // Adds a newly spawned entity, if it is in a tracked chunk
+    public void addEntity(Entity entity)    {
+        LongObjectHashMap<TrackedChunk> chunks = worlds.get(entity.getWorld());
+        if(chunks == null)  {return;}
+
+        TrackedChunk chunk = chunks.get(getKey(entity.getLocation(reusedLocation)));
+        if(chunk != null && chunk.entities.add(entity))   {
+            entityChunks.put(entity, chunk);
+        }
+    }
+
+    // Stops tracking a chunk, called when it is unloaded
+    public void removeChunk(Chunk chunk)  {
+        LongObjectHashMap<TrackedChunk> chunks = worlds.get(chunk.getWorld());
+        if(chunks == null)  {return;}
+
+        TrackedChunk removed = chunks.remove(getKey(chunk.getX(), chunk.getZ()));
+        if(removed != null) {
+            entityChunks.keySet().removeAll(removed.entities);
+        }
+    }
+
+    // Moves entities that changed chunk, removes those that are no longer valid, and refreshes or untracks chunks
+    // Called once at the start of every tick
+    public void tick()  {
+        currentTick++;
+
+        Iterator<Map.Entry<Entity, TrackedChunk>> entityIter = entityChunks.entrySet().iterator();
+        while(entityIter.hasNext()) {
+            Map.Entry<Entity, TrackedChunk> entry = entityIter.next();
+            Entity entity = entry.getKey();
+
+            // Find the chunk that the entity is in now, which is null if it isn't tracked
+            TrackedChunk newChunk = null;
+            LongObjectHashMap<TrackedChunk> chunks = worlds.get(entity.getWorld());
+            if(entity.isValid() && chunks != null)  {
+                newChunk = chunks.get(getKey(entity.getLocation(reusedLocation)));
+            }
+            if(newChunk == entry.getValue())    {continue;}
+
+            entry.getValue().entities.remove(entity);
+            if(newChunk == null)    {
+                entityIter.remove();
+            }   else    {
+                newChunk.entities.add(entity);
+                entry.setValue(newChunk);
+            }
+        }
+
+        for(Map.Entry<World, LongObjectHashMap<TrackedChunk>> worldEntry : worlds.entrySet())  {
+            Iterator<Map.Entry<Long, TrackedChunk>> chunkIter = worldEntry.getValue().entrySet().iterator();
+            while(chunkIter.hasNext())  {
+                Map.Entry<Long, TrackedChunk> entry = chunkIter.next();
+                TrackedChunk chunk = entry.getValue();
+                long key = entry.getKey();
+                int chunkX = (int) (key >> 32);
+                int chunkZ = (int) key;
+                // Chunks are normally removed when they unload, but this makes sure that they're never loaded by a refresh
+                if(currentTick - chunk.lastQueried > UNTRACK_DELAY || !worldEntry.getKey().isChunkLoaded(chunkX, chunkZ))   {
+                    entityChunks.keySet().removeAll(chunk.entities);
+                    chunkIter.remove();
+                }   else if(currentTick - chunk.lastRefreshed >= REFRESH_INTERVAL)  {
+                    refreshChunk(worldEntry.getKey().getChunkAt(chunkX, chunkZ), chunk);
+                }
+            }
+        }
+    }
+
+    // Fills the chunk with the entities that are in it in the world
+    private void refreshChunk(Chunk worldChunk, TrackedChunk chunk) {
+        for(Entity entity : worldChunk.getEntities())   {
+            if(chunk.entities.add(entity))  {
+                // The entity may have just moved here from another tracked chunk, which it must be removed from
+                TrackedChunk oldChunk = entityChunks.put(entity, chunk);
+                if(oldChunk != null)    {
+                    oldChunk.entities.remove(entity);
+                }
+            }
+        }
+        chunk.lastRefreshed = currentTick;
+    }
+
+    public void clear() {
+        worlds.clear();
+        entityChunks.clear();
+    }
+}
@@ -1,9 +1,11 @@
 package com.lauriethefish.betterportals.portal;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -12,23 +14,30 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import com.lauriethefish.betterportals.BetterPortals;
 import com.lauriethefish.betterportals.BlockRaycastData;
 import com.lauriethefish.betterportals.BlockRotator;
-import com.lauriethefish.betterportals.Config;
+import com.lauriethefish.betterportals.PlayerData;
 import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.entitymanipulation.ReplicatedEntityState;
 import com.lauriethefish.betterportals.math.MathUtils;
 import com.lauriethefish.betterportals.math.Matrix;
+import com.lauriethefish.betterportals.math.PackedBlockPositions;
+import com.lauriethefish.betterportals.math.PortalPlane;
 import com.lauriethefish.betterportals.multiblockchange.ChunkCoordIntPair;
 import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager;
+import com.lauriethefish.betterportals.region.RegionBlockSource;
 import com.lauriethefish.betterportals.selection.PortalSelection;
 
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.WorldBorder;
+import org.bukkit.block.data.BlockData;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import lombok.Getter;
+import lombok.Setter;
 
 // Stores all of the attributes required for one direction of a portal
 // Two of these should be created per portal, one for the effect on each side
@@ -54,6 +63,8 @@ public class Portal {
 
     // Size of the plane the makes up the portal radius from the centerpoint of the portal
     @Getter private Vector planeRadius;
+    // The same plane, used to check if entities went through the portal
+    private PortalPlane plane;
 
     // The size of the portal's gateway on the X and Y
     private Vector portalSize;
@@ -62,15 +73,36 @@ public class Portal {
     private int ticksSinceActivation = 0;
 
     @Getter List<BlockRaycastData> currentBlocks;
+    // The positions of currentBlocks, packed for checking their visibility in one batch
+    @Getter private volatile PackedBlockPositions currentBlockPositions;
+    // True if currentBlocks was loaded from the scan cache, and hasn't been rescanned yet
+    private boolean usingCachedBlocks = false;
+    // The location of each entity at the origin when it was last checked for going through the portal
+    // These vectors are updated in place every tick, so must not be kept anywhere else
     @Getter private Map<Entity, Vector> nearbyEntitiesOrigin = null;
+    private Location reusedLocation = new Location(null, 0, 0, 0);
     @Getter private Collection<Entity> nearbyEntitiesDestination = null;
+    // How each entity at the destination should appear at the origin, shared by every player viewing it
+    private Map<Entity, ReplicatedEntityState> replicatedEntityStates = new HashMap<>();
 
     private Set<ChunkCoordIntPair> destinationChunks = new HashSet<>();
 
+    // The effect size, update intervals and entity support of this portal
+    @Getter private PortalRenderSettings renderSettings;
+
+    // If the destination chunks are not loaded when the portal is activated, the blocks can be read from the region files instead
+    // The chunks are then only loaded if something actually loads them, for instance an entity going through the portal
+    private volatile boolean usingRegionFiles = false;
+    private volatile RegionBlockSource regionBlocks = null;
+    private volatile boolean regionLoadFailed = false;
+    private AtomicBoolean regionLoadFinished = new AtomicBoolean();
+
     private boolean anchored;
 
     // Used in unsafe mode to run block updates inside the async task
     @Getter AtomicBoolean queueBlockUpdate = new AtomicBoolean();
+    // The number of players that this portal is active for this tick, used to decide whether block change packets are worth sharing
+    @Getter @Setter private volatile int viewerCount = 0;
 
     // Constructor to generate the collision box for a given portal
     // NOTE: The portalPosition must be the EXACT center of the portal on the x, y and z
@@ -83,12 +115,8 @@ public class Portal {
         this.destDir = destinationDirection;
         this.portalSize = portalSize;
         this.anchored = anchored;
-
-        // Find the chunks around the destination of the portal
-        Vector boxSize = new Vector(pl.config.maxXZ, pl.config.maxY, pl.config.maxXZ);
-        Location boxBL = destinationPosition.clone().subtract(boxSize);
-        Location boxTR = destinationPosition.clone().add(boxSize);
-        destinationChunks = ChunkCoordIntPair.findArea(boxBL, boxTR);
+        this.renderSettings = pl.config.defaultRenderSettings;
+        findDestinationChunks();
 
         rotateToDestination = Matrix.makeRotation(portalDirection, destinationDirection);
         rotateToOrigin = Matrix.makeRotation(destinationDirection, portalDirection);
@@ -105,6 +133,7 @@ public class Portal {
         // Divide the size by 2 so it is the correct amount to subtract from the center to reach each corner
         // Then orient it so that is on the z if the portal is north/south
         this.planeRadius = portalDirection.swapVector(portalSize.clone().multiply(0.5).add(pl.config.portalCollisionBox));
+        this.plane = new PortalPlane(portalPosition.toVector(), portalDirection.toVector(), planeRadius);
         this.blockRotator = BlockRotator.newInstance(this);
     }
 
@@ -124,6 +153,38 @@ public class Portal {
             PortalDirection.fromStorage(sect.getString("destinationDirection")),
             storage.loadPortalSize(sect.getConfigurationSection("portalSize")), 
             sect.getBoolean("anchored"));
+
+        // Load any render settings that this portal overrides
+        ConfigurationSection settingsSection = sect.getConfigurationSection("renderSettings");
+        if(settingsSection != null) {
+            renderSettings = PortalRenderSettings.load(pl.config, settingsSection);
+            findDestinationChunks();
+        }
+    }
+
+    // Finds the chunks around the destination of the portal
+    private void findDestinationChunks()    {
+        Vector boxSize = new Vector(renderSettings.maxXZ, renderSettings.maxY, renderSettings.maxXZ);
+        Location boxBL = destPos.clone().subtract(boxSize);
+        Location boxTR = destPos.clone().add(boxSize);
+        destinationChunks = ChunkCoordIntPair.findArea(boxBL, boxTR);
+    }
+
+    // Changes the render settings of this portal, and resets the view of any players currently using it
+    public void setRenderSettings(PortalRenderSettings newSettings)    {
+        // The effect size may be smaller, so reset the blocks while we still know which ones were changed
+        for(PlayerData playerData : pl.getPlayers())    {
+            if(playerData.getLastActivePortal() == this)   {
+                playerData.setPortal(null);
+            }
+        }
+
+        renderSettings = newSettings;
+        findDestinationChunks();
+        currentBlocks = null;
+        currentBlockPositions = null;
+        usingCachedBlocks = false;
+        lastActive = -2; // Make the portal activate again, so that it is scanned with the new settings
     }
 
     // Saves all of the values for this portal into sect
@@ -134,37 +195,61 @@ public class Portal {
         sect.set("destinationDirection", destDir.toString());
         storage.setPortalSize(sect.createSection("portalSize"), portalSize);
         sect.set("anchored", anchored);
+
+        if(renderSettings.hasOverrides())   {
+            renderSettings.save(sect.createSection("renderSettings"));
+        }
     }
 
     public void update(int currentTick)    {
         // If it has been longer than one tick since the portal was active, set the activation time to now
         int timeSinceLastActive = currentTick - lastActive;
         if(timeSinceLastActive > 1)    {
-            // Load the chunks on the other side when the portal is activated
-            for(ChunkCoordIntPair chunk : destinationChunks)    {
-                // Force load the chunk if this is supported in the current minecraft version
-                if(ReflectUtils.useNewChunkLoadingImpl) {
-                    chunk.getChunk().setForceLoaded(true);
-                }   else    {
-                    chunk.getChunk().load();
-                }
+            // Read the blocks from the region files if none of the chunks on the other side are loaded
+            // Loaded chunks may have changes that haven't been saved yet, so the region files can't be used for any of them
+            usingRegionFiles = pl.config.renderFromRegionFiles && !ReflectUtils.isLegacy && !areAnyDestinationChunksLoaded();
+            if(usingRegionFiles)    {
+                loadRegionBlocks();
+            }   else    {
+                loadDestinationChunks();
             }
 
             ticksSinceActivation = 0;
+            // The last locations of the entities are from when the portal was last active, so the paths from them are wrong
+            nearbyEntitiesOrigin = null;
         }   else if(timeSinceLastActive == 0)   {
             return;
         }
         lastActive = currentTick;
 
+        boolean blockUpdateNeeded = false;
+        if(usingRegionFiles)    {
+            // Switch to using the actual chunks if reading the region files failed, or as soon as any of them have been loaded by something else
+            if(regionLoadFailed || areAnyDestinationChunksLoaded())    {
+                usingRegionFiles = false;
+                regionBlocks = null;
+                loadDestinationChunks();
+                blockUpdateNeeded = true;
+            }   else if(regionLoadFinished.compareAndSet(true, false))  {
+                blockUpdateNeeded = true;
+            }
+        }
+
         // Since this portal is active, add it to the new force loaded chunks
-        pl.getPortalUpdator().keepChunksForceLoaded(destinationChunks);
+        if(!usingRegionFiles)   {
+            pl.getPortalUpdator().keepChunksForceLoaded(destinationChunks);
+        }
 
         // Update the entities and blocks if we need to
-        if(ticksSinceActivation % pl.config.entityCheckInterval == 0)   {
+        if(ticksSinceActivation % renderSettings.entityCheckInterval == 0)   {
             updateNearbyEntities();
         }
-        if(ticksSinceActivation % pl.config.portalBlockUpdateInterval == 0)   {
-            if(pl.config.unsafeMode)    {
+        teleportCrossingEntities();
+        if(blockUpdateNeeded || ticksSinceActivation % renderSettings.portalBlockUpdateInterval == 0)   {
+            // If the blocks were loaded from the scan cache, use them for this activation, and confirm them with the next scan
+            if(usingCachedBlocks && !blockUpdateNeeded) {
+                usingCachedBlocks = false;
+            }   else if(pl.config.unsafeMode)    {
                 queueBlockUpdate.set(true);
             }   else    {
                 findCurrentBlocks();
@@ -173,10 +258,55 @@ public class Portal {
         ticksSinceActivation++;
     }
 
+    // Load the chunks on the other side when the portal is activated
+    private void loadDestinationChunks()    {
+        for(ChunkCoordIntPair chunk : destinationChunks)    {
+            // Force load the chunk if this is supported in the current minecraft version
+            if(ReflectUtils.useNewChunkLoadingImpl) {
+                chunk.getChunk().setForceLoaded(true);
+            }   else    {
+                chunk.getChunk().load();
+            }
+        }
+    }
+
+    private boolean areAnyDestinationChunksLoaded()    {
+        for(ChunkCoordIntPair chunk : destinationChunks)    {
+            if(destPos.getWorld().isChunkLoaded(chunk.x, chunk.z))  {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Reads the blocks at the destination from the region files on another thread
+    private void loadRegionBlocks() {
+        regionBlocks = null;
+        regionLoadFailed = false;
+        regionLoadFinished.set(false);
+
+        World world = destPos.getWorld();
+        pl.getServer().getScheduler().runTaskAsynchronously(pl, () -> {
+            try {
+                RegionBlockSource source = RegionBlockSource.load(world, destinationChunks);
+                // If any of the chunks haven't been saved, then we have to load them
+                if(source == null)  {
+                    regionLoadFailed = true;
+                    return;
+                }
+
+                regionBlocks = source;
+                regionLoadFinished.set(true);
+            }   catch(IOException | RuntimeException ex)   {
+                ex.printStackTrace();
+                regionLoadFailed = true;
+            }
+        });
+    }
+
     // Updates the two lists of neaby entities
     private void updateNearbyEntities()   {
-        Collection<Entity> nearbyEntities = originPos.getWorld()
-                    .getNearbyEntities(originPos, pl.config.maxXZ, pl.config.maxY, pl.config.maxXZ);
+        Collection<Entity> nearbyEntities = findNearbyEntities(originPos);
 
         // Store the entity and last location in a hash map
         Map<Entity, Vector> newOriginEntites = new HashMap<>();
@@ -187,9 +317,64 @@ public class Portal {
         }
         nearbyEntitiesOrigin = newOriginEntites;
 
-        if(pl.config.enableEntitySupport)   {
-            nearbyEntitiesDestination = destPos.getWorld()
-                        .getNearbyEntities(destPos, pl.config.maxXZ, pl.config.maxY, pl.config.maxXZ);
+        if(renderSettings.enableEntitySupport)   {
+            nearbyEntitiesDestination = findNearbyEntities(destPos);
+            // Entities that have left the area won't be viewed again until they come back
+            replicatedEntityStates.keySet().retainAll(new HashSet<>(nearbyEntitiesDestination));
+        }
+    }
+
+    // Teleports the entities at the origin whose path since the last tick went through the portal
+    // This is done once per tick for all of the entities, rather than for each player near the portal
+    // Players aren't teleported here, since they are teleported by MainUpdate using the position of their last render
+    private void teleportCrossingEntities()   {
+        World world = originPos.getWorld();
+        Iterator<Map.Entry<Entity, Vector>> iter = nearbyEntitiesOrigin.entrySet().iterator();
+        while(iter.hasNext())   {
+            Map.Entry<Entity, Vector> entry = iter.next();
+            Entity entity = entry.getKey();
+            // If the entity isn't in the same world, we stop checking it
+            if(entity.getWorld() != world)   {
+                iter.remove();
+                continue;
+            }
+
+            Location location = entity.getLocation(reusedLocation);
+            double x = location.getX(); double y = location.getY(); double z = location.getZ();
+            Vector lastLocation = entry.getValue();
+            if(lastLocation == null)    {
+                entry.setValue(new Vector(x, y, z));
+                continue;
+            }
+
+            boolean crossed = !(entity instanceof Player) && plane.findCrossing(lastLocation.getX(), lastLocation.getY(), lastLocation.getZ(), x, y, z) >= 0.0;
+            if(crossed) {
+                // The portal transformation keeps straight lines straight, so moving the entity's current location carries on its path from the crossing point at the destination
+                teleportEntity(entity);
+                if(nearbyEntitiesDestination != null)   {
+                    nearbyEntitiesDestination.add(entity);
+                }
+                iter.remove();
+            }   else    {
+                // Set the location back to the actual location, without making a new vector
+                lastLocation.setX(x); lastLocation.setY(y); lastLocation.setZ(z);
+            }
+        }
+    }
+
+    // Gets the shared state of an entity at the destination, recalculated if it hasn't been already this tick
+    public ReplicatedEntityState getReplicatedState(Entity entity)  {
+        ReplicatedEntityState state = replicatedEntityStates.computeIfAbsent(entity, e -> new ReplicatedEntityState(this, e));
+        state.update(lastActive);
+        return state;
+    }
+
+    // Finds the entities within the portal effect size of the position, using the entity index if it is enabled
+    private Collection<Entity> findNearbyEntities(Location position)    {
+        if(pl.config.useEntityIndex)    {
+            return pl.getPortalUpdator().getEntityIndex().getNearbyEntities(position, renderSettings.maxXZ, renderSettings.maxY, renderSettings.maxXZ);
+        }   else    {
+            return position.getWorld().getNearbyEntities(position, renderSettings.maxXZ, renderSettings.maxY, renderSettings.maxXZ);
         }
     }
 
@@ -277,18 +462,24 @@ public class Portal {
         }
     }
 
-    public void removePortalBlocks(Player player)    {
-        setPortalBlocks(player, false);
+    public void removePortalBlocks(PlayerData playerData)    {
+        setPortalBlocks(playerData, false);
     }
 
-    public void recreatePortalBlocks(Player player)    {
-        setPortalBlocks(player, true);
+    public void recreatePortalBlocks(PlayerData playerData)    {
+        setPortalBlocks(playerData, true);
     }
     
     // Sends a packet to the player setting the portal blocks to air (if reset is false), or back to what they were (if reset is true)
-    private void setPortalBlocks(Player player, boolean reset)  {
-        MultiBlockChangeManager manager = MultiBlockChangeManager.createInstance(player);
+    private void setPortalBlocks(PlayerData playerData, boolean reset)  {
+        MultiBlockChangeManager manager = playerData.getBlockChangeManager();
+        synchronized(manager)   {
+            addPortalBlockChanges(manager, reset);
+            manager.sendChanges(); // Send the packet to the player
+        }
+    }
 
+    private void addPortalBlockChanges(MultiBlockChangeManager manager, boolean reset)  {
         Vector actualSize = originDir.swapVector(portalSize);
         Vector blockBL = originPos.toVector().subtract(actualSize.multiply(0.5));
 
@@ -307,8 +498,24 @@ public class Portal {
                 }
             }
         }
+    }
 
-        manager.sendChanges(); // Send the packet to the player
+    // Sets the current blocks to those loaded from the scan cache, so that they can be shown before the portal is scanned
+    public void setCachedBlocks(List<BlockRaycastData> blocks)  {
+        currentBlocks = blocks;
+        currentBlockPositions = new PackedBlockPositions(blocks);
+        usingCachedBlocks = true;
+    }
+
+    // Identifies the position, size and effect size of this portal, used to check that cached scans are still valid
+    // All of the values are kept in full rather than hashed, so that two different portals can never match
+    public String getScanFingerprint()    {
+        return String.join(",", originPos.getWorld().getName(), String.valueOf(originPos.getX()), String.valueOf(originPos.getY()),
+                            String.valueOf(originPos.getZ()), originDir.name(),
+                            destPos.getWorld().getName(), String.valueOf(destPos.getX()), String.valueOf(destPos.getY()),
+                            String.valueOf(destPos.getZ()), destDir.name(),
+                            String.valueOf(portalSize.getX()), String.valueOf(portalSize.getY()),
+                            String.valueOf(renderSettings.maxXZ), String.valueOf(renderSettings.maxY));
     }
 
     // Checks if the location is on the plane made by the portal window
@@ -327,27 +534,32 @@ public class Portal {
 
     // Loops through the blocks at the destination position, and finds the ones that aren't obscured by other solid blocks
     public void findCurrentBlocks()  {
-        Config config = pl.config;
+        PortalRenderSettings settings = renderSettings; // Keep a reference in case the settings change while scanning
+
+        // If we're waiting for the region files to be read, then there's nothing to scan yet
+        RegionBlockSource regionSource = usingRegionFiles ? regionBlocks : null;
+        if(usingRegionFiles && regionSource == null)    {return;}
 
         List<BlockRaycastData> newBlocks = new ArrayList<>();
 
         // Loop through the surrounding blocks, and check which ones are occluding
-        boolean[] occlusionArray = new boolean[config.totalArrayLength];
-        for(double z = config.minXZ; z <= config.maxXZ; z++) {
-            for(double y = config.minY; y <= config.maxY; y++) {
-                for(double x = config.minXZ; x <= config.maxXZ; x++) {
+        boolean[] occlusionArray = ScanBufferPool.takeBooleanArray(settings.totalArrayLength);
+        for(double z = settings.minXZ; z <= settings.maxXZ; z++) {
+            for(double y = settings.minY; y <= settings.maxY; y++) {
+                for(double x = settings.minXZ; x <= settings.maxXZ; x++) {
                     Location originLoc = MathUtils.moveToCenterOfBlock(originPos.clone().add(x, y, z));
                     Location position = moveOriginToDestination(originLoc);
-                    occlusionArray[config.calculateBlockArrayIndex(x, y, z)] = position.getBlock().getType().isOccluding();
+                    boolean occluding = regionSource == null ? position.getBlock().getType().isOccluding() : regionSource.isOccluding(position);
+                    occlusionArray[settings.calculateBlockArrayIndex(x, y, z)] = occluding;
                 }
             }
         }
 
         // Check to see if each block is fully obscured, if not, add it to the list
-        for(double z = config.minXZ; z <= config.maxXZ; z++) {
-            for(double y = config.minY; y <= config.maxY; y++) {
-                for(double x = config.minXZ; x <= config.maxXZ; x++) {
-                    int arrayIndex = config.calculateBlockArrayIndex(x, y, z);
+        for(double z = settings.minXZ; z <= settings.maxXZ; z++) {
+            for(double y = settings.minY; y <= settings.maxY; y++) {
+                for(double x = settings.minXZ; x <= settings.maxXZ; x++) {
+                    int arrayIndex = settings.calculateBlockArrayIndex(x, y, z);
 
                     Location originLoc = MathUtils.moveToCenterOfBlock(originPos.clone().add(x, y, z));
                     Location destLoc = moveOriginToDestination(originLoc);
@@ -356,9 +568,9 @@ public class Portal {
                     
                     // First check if the block is visible from any neighboring block
                     boolean transparentBlock = false;
-                    for(int offset : config.surroundingOffsets) {
+                    for(int offset : settings.surroundingOffsets) {
                         int finalIndex = arrayIndex + offset;
-                        if(finalIndex < 0 || finalIndex >= config.totalArrayLength) {
+                        if(finalIndex < 0 || finalIndex >= settings.totalArrayLength) {
                             continue;
                         }
 
@@ -370,12 +582,22 @@ public class Portal {
 
                     // If the block is bordered by at least one transparent block, add it to the list
                     if(transparentBlock)    {
-                        boolean edge = x == config.maxXZ || x == config.minXZ || z == config.maxXZ || z == config.minXZ || y == config.maxY || y == config.minY;
-                        newBlocks.add(new BlockRaycastData(blockRotator, originLoc, destLoc, edge));
+                        boolean edge = x == settings.maxXZ || x == settings.minXZ || z == settings.maxXZ || z == settings.minXZ || y == settings.maxY || y == settings.minY;
+                        if(regionSource == null)    {
+                            newBlocks.add(new BlockRaycastData(blockRotator, originLoc, destLoc, edge));
+                            continue;
+                        }
+
+                        BlockData destData = regionSource.getBlockData(destLoc);
+                        if(destData != null)    {
+                            newBlocks.add(new BlockRaycastData(blockRotator, originLoc, destData, edge));
+                        }
                     }
                 }
             }
         }
+        ScanBufferPool.returnBooleanArray(occlusionArray);
         currentBlocks = newBlocks;
+        currentBlockPositions = new PackedBlockPositions(newBlocks);
     }
 }
\ No newline at end of file
@@ -0,0 +1,128 @@
+package com.lauriethefish.betterportals.portal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lauriethefish.betterportals.Config;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+// Stores the settings that control how expensive a portal is to render
+// Each portal can override any of these settings, and the rest are taken from config.yml
+public class PortalRenderSettings {
+    // The keys that can be overridden, these have the same names as in config.yml
+    public static final List<String> keys = Collections.unmodifiableList(Arrays.asList(
+        "portalEffectSizeXZ", "portalEffectSizeY", "portalBlockUpdateInterval", "entityCheckInterval", "enableEntitySupport"
+    ));
+
+    // Only the settings that this portal overrides, used when saving
+    private Map<String, Object> overrides;
+
+    // The min and max values for the blocks that the portal will scan
+    public double minXZ;
+    public double maxXZ;
+    public double minY;
+    public double maxY;
+
+    // Multiplyers used to access the array of blocks surrounding the portal
+    private int yMultip;
+    private int zMultip;
+    public int totalArrayLength;
+
+    public int[] surroundingOffsets;
+
+    public int portalBlockUpdateInterval;
+    public int entityCheckInterval;
+    public boolean enableEntitySupport;
+
+    // Makes the settings using the values from the config, with any of them replaced by those in overrides
+    public PortalRenderSettings(Config config, Map<String, Object> overrides)  {
+        this.overrides = overrides;
+
+        maxXZ = (int) overrides.getOrDefault("portalEffectSizeXZ", (int) config.maxXZ);
+        minXZ = maxXZ * -1.0;
+        maxY = (int) overrides.getOrDefault("portalEffectSizeY", (int) config.maxY);
+        minY = maxY * -1.0;
+
+        portalBlockUpdateInterval = (int) overrides.getOrDefault("portalBlockUpdateInterval", config.portalBlockUpdateInterval);
+        entityCheckInterval = (int) overrides.getOrDefault("entityCheckInterval", config.entityCheckInterval);
+        enableEntitySupport = (boolean) overrides.getOrDefault("enableEntitySupport", config.enableEntitySupport);
+
+        // Calculate the multipliers for accessing the table
+        zMultip = (int) (maxXZ - minXZ + 1);
+        yMultip = zMultip * zMultip;
+        totalArrayLength = yMultip * (int) (maxY - minY + 1);
+
+        // Calculate the differences in index for quickly accessing the block array while building the mesh
+        surroundingOffsets = new int[]{
+            1,
+            -1,
+            yMultip,
+            -yMultip,
+            zMultip,
+            -zMultip
+        };
+    }
+
+    // Loads the overrides of a portal from portals.yml
+    public static PortalRenderSettings load(Config config, ConfigurationSection section)   {
+        Map<String, Object> overrides = new HashMap<>();
+        if(section != null) {
+            for(String key : keys)  {
+                if(section.contains(key))   {
+                    overrides.put(key, key.equals("enableEntitySupport") ? (Object) section.getBoolean(key) : (Object) section.getInt(key));
+                }
+            }
+        }
+        return new PortalRenderSettings(config, overrides);
+    }
+
+    // Saves only the overridden settings, so that the others still follow config.yml
+    public void save(ConfigurationSection section) {
+        for(Map.Entry<String, Object> entry : overrides.entrySet())  {
+            section.set(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean hasOverrides()   {
+        return !overrides.isEmpty();
+    }
+
+    // Makes a copy of these settings with the given setting overridden, or reset to the config value if value is null
+    // Throws IllegalArgumentException if the key or value is invalid
+    public PortalRenderSettings withOverride(Config config, String key, String value)  {
+        if(!keys.contains(key)) {
+            throw new IllegalArgumentException("Unknown setting " + key);
+        }
+
+        Map<String, Object> newOverrides = new HashMap<>(overrides);
+        if(value == null)   {
+            newOverrides.remove(key);
+        }   else if(key.equals("enableEntitySupport"))   {
+            newOverrides.put(key, Boolean.valueOf(value));
+        }   else    {
+            int intValue = Integer.parseInt(value); // NumberFormatException is an IllegalArgumentException
+            if(intValue < 1)    {
+                throw new IllegalArgumentException("Setting " + key + " must be at least 1");
+            }
+            newOverrides.put(key, intValue);
+        }
+
+        return new PortalRenderSettings(config, newOverrides);
+    }
+
+    // Finds the index in an array of blocks surrounding the portal
+    // Coordinates should be relative to the bottom left and lowest corner of the box
+    public int calculateBlockArrayIndex(double x, double y, double z)  {
+        return (int) (z * zMultip + y * yMultip + x) + totalArrayLength / 2;
+    }
+
+    @Override
+    public String toString()    {
+        return String.format("effect size %d/%d, block update interval %d, entity check interval %d, entities %s",
+                            (int) maxXZ, (int) maxY, portalBlockUpdateInterval, entityCheckInterval, enableEntitySupport);
+    }
+}
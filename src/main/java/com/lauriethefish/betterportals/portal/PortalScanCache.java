@@ -0,0 +1,167 @@
+package com.lauriethefish.betterportals.portal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.lauriethefish.betterportals.BetterPortals;
+import com.lauriethefish.betterportals.BlockRaycastData;
+import com.lauriethefish.betterportals.multiblockchange.ChunkCoordIntPair;
+import com.lauriethefish.betterportals.region.RegionFile;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.util.Vector;
+
+// Saves the blocks found by the last scan of each portal to scancache.dat, so that portals don't start cold after a restart
+// Blocks are stored by their position relative to the portal, and their IDs in the global block palette
+public class PortalScanCache {
+    private static final int FORMAT_VERSION = 2;
+
+    private BetterPortals pl;
+    private File cacheFile;
+
+    public PortalScanCache(BetterPortals pl)    {
+        this.pl = pl;
+        cacheFile = pl.getDataFolder().toPath().resolve("data").resolve("scancache.dat").toFile();
+    }
+
+    // Writes the current blocks of every portal that has been scanned
+    public void save(Collection<Portal> portals) throws IOException  {
+        List<Portal> scannedPortals = new ArrayList<>();
+        for(Portal portal : portals)    {
+            if(portal.getCurrentBlocks() != null)   {
+                scannedPortals.add(portal);
+            }
+        }
+
+        // Worlds are normally saved after plugins are disabled, so save them now, otherwise the region files would change after the cache is written
+        Set<World> worlds = new HashSet<>();
+        for(Portal portal : scannedPortals) {
+            worlds.add(portal.getOriginPos().getWorld());
+            worlds.add(portal.getDestPos().getWorld());
+        }
+        for(World world : worlds)   {
+            world.save();
+        }
+
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile))))  {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(scannedPortals.size());
+
+            for(Portal portal : scannedPortals) {
+                Location originPos = portal.getOriginPos();
+                writeLocation(output, originPos);
+                output.writeUTF(portal.getScanFingerprint());
+
+                // Store when each region file around the portal was last written, so that any change to them afterwards is noticed
+                Set<File> regionFiles = findRegionFiles(portal);
+                output.writeInt(regionFiles.size());
+                for(File file : regionFiles)    {
+                    output.writeUTF(file.getPath());
+                    output.writeLong(file.lastModified());
+                }
+
+                List<BlockRaycastData> blocks = portal.getCurrentBlocks();
+                output.writeInt(blocks.size());
+                for(BlockRaycastData block : blocks)    {
+                    // Store the offset of the block from the portal, since this fits in a short
+                    Vector position = block.getOriginVec();
+                    output.writeShort(position.getBlockX() - originPos.getBlockX());
+                    output.writeShort(position.getBlockY() - originPos.getBlockY());
+                    output.writeShort(position.getBlockZ() - originPos.getBlockZ());
+                    output.writeInt(BlockRaycastData.getCombinedId(block.getOriginData()));
+                    output.writeInt(BlockRaycastData.getCombinedId(block.getDestData()));
+                }
+            }
+        }
+    }
+
+    // Reads the cache file, and gives the cached blocks to any portals that they are still valid for
+    public void load(Map<Location, Portal> portals) throws IOException   {
+        if(!cacheFile.exists()) {return;}
+
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))    {
+            // Ignore caches from other versions of the format
+            if(input.readInt() != FORMAT_VERSION)   {return;}
+
+            int portalCount = input.readInt();
+            for(int i = 0; i < portalCount; i++)    {
+                Location originPos = readLocation(input);
+                String fingerprint = input.readUTF();
+
+                boolean regionsModified = false;
+                int regionCount = input.readInt();
+                for(int j = 0; j < regionCount; j++)    {
+                    File file = new File(input.readUTF());
+                    long lastModified = input.readLong();
+                    if(!file.exists() || file.lastModified() != lastModified)   {
+                        regionsModified = true;
+                    }
+                }
+
+                int blockCount = input.readInt();
+                List<BlockRaycastData> blocks = new ArrayList<>(blockCount);
+                for(int j = 0; j < blockCount; j++) {
+                    Vector position = new Vector(
+                        originPos.getBlockX() + input.readShort() + 0.5,
+                        originPos.getBlockY() + input.readShort() + 0.5,
+                        originPos.getBlockZ() + input.readShort() + 0.5
+                    );
+                    Object originData = BlockRaycastData.getNMSData(input.readInt());
+                    Object destData = BlockRaycastData.getNMSData(input.readInt());
+                    blocks.add(new BlockRaycastData(position, originData, destData));
+                }
+
+                // The blocks are only used if the portal is the same, and the worlds haven't been modified since they were cached
+                Portal portal = portals.get(originPos);
+                if(portal == null || !portal.getScanFingerprint().equals(fingerprint) || regionsModified) {
+                    continue;
+                }
+                portal.setCachedBlocks(blocks);
+            }
+        }
+    }
+
+    // Finds the region files containing the area scanned on either side of the portal
+    private Set<File> findRegionFiles(Portal portal)    {
+        PortalRenderSettings settings = portal.getRenderSettings();
+        Vector boxSize = new Vector(settings.maxXZ, settings.maxY, settings.maxXZ);
+
+        // Multiple chunks will usually be in the same region, so each file is only added once
+        Set<File> regionFiles = new HashSet<>();
+        addRegionFiles(regionFiles, portal.getOriginPos(), boxSize);
+        addRegionFiles(regionFiles, portal.getDestPos(), boxSize);
+        return regionFiles;
+    }
+
+    private void addRegionFiles(Set<File> regionFiles, Location location, Vector boxSize) {
+        File regionFolder = RegionFile.getFolder(location.getWorld());
+        for(ChunkCoordIntPair chunk : ChunkCoordIntPair.findArea(location.clone().subtract(boxSize), location.clone().add(boxSize))) {
+            regionFiles.add(RegionFile.getFile(regionFolder, chunk.x, chunk.z));
+        }
+    }
+
+    private void writeLocation(DataOutputStream output, Location location) throws IOException    {
+        output.writeUTF(location.getWorld().getName());
+        output.writeDouble(location.getX());
+        output.writeDouble(location.getY());
+        output.writeDouble(location.getZ());
+    }
+
+    private Location readLocation(DataInputStream input) throws IOException  {
+        World world = pl.getServer().getWorld(input.readUTF());
+        return new Location(world, input.readDouble(), input.readDouble(), input.readDouble());
+    }
+}
@@ -0,0 +1,36 @@
+package com.lauriethefish.betterportals.portal;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Reuses the arrays used while scanning portals, so that portals with different effect sizes don't keep allocating new ones
+// Arrays are grouped into power of two size classes, so an array may be longer than requested
+public class ScanBufferPool {
+    private static final int SIZE_CLASSES = 32;
+
+    // Concurrent queues are used since portals may be scanned on the async task in unsafe mode
+    @SuppressWarnings("unchecked")
+    private static Queue<boolean[]>[] booleanArrays = new Queue[SIZE_CLASSES];
+    static {
+        for(int i = 0; i < SIZE_CLASSES; i++)   {
+            booleanArrays[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    // Finds the size class that can fit an array of the given length
+    private static int getSizeClass(int length) {
+        return length <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(length - 1);
+    }
+
+    // Gets an array with at least the given length. The contents of the array are not cleared
+    public static boolean[] takeBooleanArray(int length)    {
+        int sizeClass = getSizeClass(length);
+        boolean[] array = booleanArrays[sizeClass].poll();
+        return array == null ? new boolean[1 << sizeClass] : array;
+    }
+
+    // Returns an array to the pool so that it can be reused
+    public static void returnBooleanArray(boolean[] array)  {
+        booleanArrays[getSizeClass(array.length)].offer(array);
+    }
+}
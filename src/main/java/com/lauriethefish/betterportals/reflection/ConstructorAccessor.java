@@ -0,0 +1,42 @@
+package com.lauriethefish.betterportals.reflection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+
+// Calls a constructor that was found once, instead of looking it up with reflection every time an object is made
+public class ConstructorAccessor {
+    private final MethodHandle handle;
+    private final Class<?> type;
+
+    public ConstructorAccessor(Class<?> cla, Class<?>... params) {
+        this.type = cla;
+        try {
+            Constructor<?> constructor = cla.getDeclaredConstructor(params);
+            constructor.setAccessible(true);
+
+            // Make the handle take an array of objects, so that it can be invoked exactly without knowing the types of the arguments
+            handle = MethodHandles.lookup().unreflectConstructor(constructor)
+                        .asType(MethodType.genericMethodType(params.length))
+                        .asSpreader(Object[].class, params.length);
+        }   catch(ReflectiveOperationException ex)  {
+            throw new IllegalStateException("Unable to find constructor of " + cla.getName(), ex);
+        }
+    }
+
+    // Gets the class that this constructs
+    public Class<?> getType()   {
+        return type;
+    }
+
+    public Object newInstance(Object... args)   {
+        try {
+            return (Object) handle.invokeExact(args);
+        }   catch(RuntimeException | Error ex)  {
+            throw ex;
+        }   catch(Throwable ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.lauriethefish.betterportals.reflection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+// Gets and sets a field that was found once, instead of looking it up with reflection every time it is used
+public class FieldAccessor {
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    // The field is also searched for in the superclasses of cla
+    public FieldAccessor(Class<?> cla, String name)   {
+        Field field = findField(cla, name);
+        field.setAccessible(true);
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+            setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+        }   catch(IllegalAccessException ex)    {
+            throw new IllegalStateException("Unable to access field " + name + " of " + cla.getName(), ex);
+        }
+    }
+
+    private static Field findField(Class<?> cla, String name)  {
+        for(Class<?> current = cla; current != null; current = current.getSuperclass())  {
+            try {
+                return current.getDeclaredField(name);
+            }   catch(NoSuchFieldException ignored)    {}
+        }
+        throw new IllegalStateException("Unable to find field " + name + " of " + cla.getName());
+    }
+
+    public Object get(Object obj)   {
+        try {
+            return (Object) getter.invokeExact(obj);
+        }   catch(RuntimeException | Error ex)  {
+            throw ex;
+        }   catch(Throwable ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public void set(Object obj, Object value)   {
+        try {
+            setter.invokeExact(obj, value);
+        }   catch(RuntimeException | Error ex)  {
+            throw ex;
+        }   catch(Throwable ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.lauriethefish.betterportals.reflection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+// Calls a method that was found once, instead of looking it up with reflection every time it is called
+public class MethodAccessor {
+    private final MethodHandle handle;
+
+    // The method is also searched for in the superclasses of cla
+    public MethodAccessor(Class<?> cla, String name, Class<?>... params)   {
+        Method method = findMethod(cla, name, params);
+        method.setAccessible(true);
+
+        try {
+            MethodHandle methodHandle = MethodHandles.lookup().unreflect(method);
+            // Static methods ignore the object they are called on, so that all methods can be invoked in the same way
+            if(Modifier.isStatic(method.getModifiers()))    {
+                methodHandle = MethodHandles.dropArguments(methodHandle, 0, Object.class);
+            }
+
+            // Void methods return null
+            handle = methodHandle.asType(MethodType.genericMethodType(params.length + 1))
+                        .asSpreader(Object[].class, params.length);
+        }   catch(IllegalAccessException ex)    {
+            throw new IllegalStateException("Unable to access method " + name + " of " + cla.getName(), ex);
+        }
+    }
+
+    private static Method findMethod(Class<?> cla, String name, Class<?>[] params)  {
+        for(Class<?> current = cla; current != null; current = current.getSuperclass())  {
+            try {
+                return current.getDeclaredMethod(name, params);
+            }   catch(NoSuchMethodException ignored)    {}
+        }
+        throw new IllegalStateException("Unable to find method " + name + " of " + cla.getName());
+    }
+
+    // obj is ignored for static methods
+    public Object invoke(Object obj, Object... args)    {
+        try {
+            return (Object) handle.invokeExact(obj, args);
+        }   catch(RuntimeException | Error ex)  {
+            throw ex;
+        }   catch(Throwable ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
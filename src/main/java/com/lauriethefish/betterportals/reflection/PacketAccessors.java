@@ -0,0 +1,203 @@
+package com.lauriethefish.betterportals.reflection;
+
+import com.lauriethefish.betterportals.ReflectUtils;
+import com.lauriethefish.betterportals.entitymanipulation.EntityEquipmentState;
+import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager_Old;
+import com.lauriethefish.betterportals.network.PacketScheduler;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+
+import io.netty.buffer.ByteBuf;
+
+// Stores the constructors, fields and methods used to make and send packets every tick
+// These are all found once when the plugin is enabled, since finding them with ReflectUtils every time is slow
+public class PacketAccessors {
+    // Finding the NMS versions of entities and players, and sending packets to them
+    public static MethodAccessor entityHandle;
+    public static FieldAccessor playerConnection;
+    public static MethodAccessor sendPacketMethod;
+    public static FieldAccessor networkManager;
+    public static FieldAccessor ping;
+    public static FieldAccessor channel;
+    // Encoding packets, used to measure the size of NMS packets
+    public static ConstructorAccessor packetSerializer;
+    public static MethodAccessor writePacket;
+
+    // Entity packets, the fields are in the order that setFields takes them
+    public static PacketType collect; // entity ID, collector ID, amount
+    public static PacketType animation; // entity ID, animation
+    public static PacketType mount; // entity ID, passenger IDs
+    public static PacketType entityDestroy; // entity IDs
+    public static PacketType teleport; // entity ID, x, y, z, yaw, pitch
+    public static PacketType headRotation; // entity ID, head rotation
+    public static PacketType bed; // entity ID, bed position
+    public static PacketType equipment; // entity ID, then either the list of slots and items, or the slot and item in older versions
+    public static PacketType metadata;
+    public static PacketType metadataChanges; // entity ID, list of DataWatcher items, made with the no-args constructor
+    public static PacketType relativeMove;
+    public static PacketType relativeMoveLook;
+    public static PacketType look;
+    public static PacketType blockBreakAnimation;
+
+    // Spawn packets are made from the entity, then have their entity ID and position overridden
+    public static PacketType spawnPainting; // entity ID, block position, direction
+    public static PacketType spawnExperienceOrb; // entity ID, x, y, z
+    public static PacketType spawnNamedEntity; // entity ID, x, y, z
+    public static PacketType spawnLiving; // entity ID, x, y, z
+    public static PacketType spawnEntity; // entity ID, x, y, z, only used in 1.14 and up
+
+    // Multi block change packets, the fields depend on the version, see the MultiBlockChangeManager implementations
+    public static ConstructorAccessor multiBlockChangeManager;
+    public static PacketType multiBlockChange;
+    public static PacketType blockChange; // block position, block data
+    public static PacketType mapChunk; // chunk x, chunk z, only used to read the position of chunks sent by the server
+    public static ConstructorAccessor multiBlockChangeInfo;
+    public static Class<?> blockDataClass;
+
+    // Other NMS objects used by the packets
+    public static ConstructorAccessor blockPosition;
+    public static ConstructorAccessor sectionPosition;
+    public static ConstructorAccessor chunkCoordIntPair;
+    public static ConstructorAccessor pair;
+    // Reading the coordinates of block positions, section positions and chunk positions
+    public static MethodAccessor getX;
+    public static MethodAccessor getY;
+    public static MethodAccessor getZ;
+    public static FieldAccessor chunkX;
+    public static FieldAccessor chunkZ;
+    public static FieldAccessor dataWatcher;
+    public static FieldAccessor bedPosition;
+    public static FieldAccessor hangingPosition;
+    public static MethodAccessor getHeadRotation;
+    public static MethodAccessor getItemSlot;
+    public static Object[] itemSlots; // The EnumItemSlot of each slot in EntityEquipmentState.SLOT_NAMES
+    public static MethodAccessor asNMSCopy;
+
+    // Reading the items in metadata packets, so that only the changed items are sent
+    // These aren't needed for the plugin to work, so metadataDiffing is false if any can't be found
+    public static boolean metadataDiffing;
+    public static FieldAccessor metadataItems;
+    public static MethodAccessor getItemObject;
+    public static MethodAccessor getItemValue;
+    public static MethodAccessor getObjectIndex;
+    public static ConstructorAccessor dataWatcherItem;
+    public static Class<?> nmsItemStackClass;
+    public static MethodAccessor asCraftMirror;
+
+    // Finds everything for the current server version
+    // Throws IllegalStateException if anything can't be found
+    public static void load()   {
+        Class<?> nmsEntity = ReflectUtils.getMcClass("Entity");
+        Class<?> blockPositionClass = ReflectUtils.getMcClass("BlockPosition");
+        blockDataClass = ReflectUtils.getMcClass("IBlockData");
+
+        entityHandle = new MethodAccessor(ReflectUtils.getBukkitClass("entity.CraftEntity"), "getHandle");
+        playerConnection = new FieldAccessor(ReflectUtils.getMcClass("EntityPlayer"), "playerConnection");
+        sendPacketMethod = new MethodAccessor(ReflectUtils.getMcClass("PlayerConnection"), "sendPacket", ReflectUtils.getMcClass("Packet"));
+        networkManager = new FieldAccessor(ReflectUtils.getMcClass("PlayerConnection"), "networkManager");
+        ping = new FieldAccessor(ReflectUtils.getMcClass("EntityPlayer"), "ping");
+        channel = new FieldAccessor(ReflectUtils.getMcClass("NetworkManager"), "channel");
+        Class<?> serializerClass = ReflectUtils.getMcClass("PacketDataSerializer");
+        packetSerializer = new ConstructorAccessor(serializerClass, ByteBuf.class);
+        writePacket = new MethodAccessor(ReflectUtils.getMcClass("Packet"), "b", serializerClass);
+
+        collect = new PacketType("PacketPlayOutCollect", "a", "b", "c");
+        animation = new PacketType("PacketPlayOutAnimation", "a", "b");
+        mount = new PacketType("PacketPlayOutMount", "a", "b");
+        entityDestroy = new PacketType("PacketPlayOutEntityDestroy", "a");
+        teleport = new PacketType("PacketPlayOutEntityTeleport", "a", "b", "c", "d", "e", "f");
+        headRotation = new PacketType("PacketPlayOutEntityHeadRotation", "a", "b");
+        if(ReflectUtils.sendBedPackets) {
+            bed = new PacketType("PacketPlayOutBed", "a", "b");
+            bedPosition = new FieldAccessor(ReflectUtils.getMcClass("EntityHuman"), "bedPosition");
+        }
+
+        if(ReflectUtils.useNewEntityEquipmentImpl)  {
+            equipment = new PacketType("PacketPlayOutEntityEquipment", "a", "b");
+            pair = new ConstructorAccessor(ReflectUtils.getClass("com.mojang.datafixers.util.Pair"), Object.class, Object.class);
+        }   else    {
+            equipment = new PacketType("PacketPlayOutEntityEquipment", "a", "b", "c");
+        }
+
+        metadata = new PacketType("PacketPlayOutEntityMetadata", new Class[]{int.class, ReflectUtils.getMcClass("DataWatcher"), boolean.class});
+        // In newer versions, a short is used for relative move packets, but in 1.13 and under, a long is used
+        Class<?> moveType = ReflectUtils.useNewEntitySpawnAndMoveImpl ? short.class : long.class;
+        relativeMove = new PacketType("PacketPlayOutEntity$PacketPlayOutRelEntityMove", new Class[]{int.class, moveType, moveType, moveType, boolean.class});
+        relativeMoveLook = new PacketType("PacketPlayOutEntity$PacketPlayOutRelEntityMoveLook",
+                                            new Class[]{int.class, moveType, moveType, moveType, byte.class, byte.class, boolean.class});
+        look = new PacketType("PacketPlayOutEntity$PacketPlayOutEntityLook", new Class[]{int.class, byte.class, byte.class, boolean.class});
+        blockBreakAnimation = new PacketType("PacketPlayOutBlockBreakAnimation", new Class[]{int.class, blockPositionClass, int.class});
+
+        spawnPainting = new PacketType("PacketPlayOutSpawnEntityPainting", new Class[]{ReflectUtils.getMcClass("EntityPainting")}, "a", "c", "d");
+        spawnExperienceOrb = new PacketType("PacketPlayOutSpawnEntityExperienceOrb", new Class[]{ReflectUtils.getMcClass("EntityExperienceOrb")}, "a", "b", "c", "d");
+        spawnNamedEntity = new PacketType("PacketPlayOutNamedEntitySpawn", new Class[]{ReflectUtils.getMcClass("EntityHuman")}, "a", "c", "d", "e");
+        spawnLiving = new PacketType("PacketPlayOutSpawnEntityLiving", new Class[]{ReflectUtils.getMcClass("EntityLiving")}, "a", "d", "e", "f");
+        // Before 1.14, other entities are spawned using an EntityTrackerEntry, which can give different types of packet
+        if(ReflectUtils.useNewEntitySpawnAndMoveImpl)   {
+            spawnEntity = new PacketType("PacketPlayOutSpawnEntity", new Class[]{nmsEntity}, "a", "c", "d", "e");
+        }
+
+        multiBlockChangeManager = new ConstructorAccessor(ReflectUtils.multiBlockChangeImpl, Player.class, PacketScheduler.class);
+        if(ReflectUtils.multiBlockChangeImpl == MultiBlockChangeManager_Old.class)  {
+            multiBlockChange = new PacketType("PacketPlayOutMultiBlockChange", "a", "b");
+            multiBlockChangeInfo = new ConstructorAccessor(ReflectUtils.getMcClass("PacketPlayOutMultiBlockChange$MultiBlockChangeInfo"),
+                                                            ReflectUtils.getMcClass("PacketPlayOutMultiBlockChange"), short.class, blockDataClass);
+        }   else    {
+            multiBlockChange = new PacketType("PacketPlayOutMultiBlockChange", "a", "b", "c");
+            sectionPosition = new ConstructorAccessor(ReflectUtils.getMcClass("SectionPosition"), int.class, int.class, int.class);
+        }
+
+        blockChange = new PacketType("PacketPlayOutBlockChange", "a", "block");
+        mapChunk = new PacketType("PacketPlayOutMapChunk", "a", "b");
+
+        blockPosition = new ConstructorAccessor(blockPositionClass, int.class, int.class, int.class);
+        chunkCoordIntPair = new ConstructorAccessor(ReflectUtils.getMcClass("ChunkCoordIntPair"), int.class, int.class);
+        Class<?> baseBlockPosition = ReflectUtils.getMcClass("BaseBlockPosition");
+        getX = new MethodAccessor(baseBlockPosition, "getX");
+        getY = new MethodAccessor(baseBlockPosition, "getY");
+        getZ = new MethodAccessor(baseBlockPosition, "getZ");
+        chunkX = new FieldAccessor(ReflectUtils.getMcClass("ChunkCoordIntPair"), "x");
+        chunkZ = new FieldAccessor(ReflectUtils.getMcClass("ChunkCoordIntPair"), "z");
+        dataWatcher = new FieldAccessor(nmsEntity, "datawatcher");
+        hangingPosition = new FieldAccessor(ReflectUtils.getMcClass("EntityHanging"), "blockPosition");
+        getHeadRotation = new MethodAccessor(nmsEntity, "getHeadRotation");
+        getItemSlot = new MethodAccessor(ReflectUtils.getMcClass("EnumItemSlot"), "valueOf", String.class);
+        itemSlots = new Object[EntityEquipmentState.SLOT_NAMES.length];
+        for(int i = 0; i < itemSlots.length; i++)   {
+            itemSlots[i] = getItemSlot.invoke(null, EntityEquipmentState.SLOT_NAMES[i]);
+        }
+        asNMSCopy = new MethodAccessor(ReflectUtils.getBukkitClass("inventory.CraftItemStack"), "asNMSCopy", ItemStack.class);
+
+        try {
+            Class<?> itemClass = ReflectUtils.getMcClass("DataWatcher$Item");
+            Class<?> objectClass = ReflectUtils.getMcClass("DataWatcherObject");
+            metadataChanges = new PacketType("PacketPlayOutEntityMetadata", "a", "b");
+            metadataItems = new FieldAccessor(ReflectUtils.getMcClass("PacketPlayOutEntityMetadata"), "b");
+            getItemObject = new MethodAccessor(itemClass, "a");
+            getItemValue = new MethodAccessor(itemClass, "b");
+            getObjectIndex = new MethodAccessor(objectClass, "a");
+            dataWatcherItem = new ConstructorAccessor(itemClass, objectClass, Object.class);
+            nmsItemStackClass = ReflectUtils.getMcClass("ItemStack");
+            asCraftMirror = new MethodAccessor(ReflectUtils.getBukkitClass("inventory.CraftItemStack"), "asCraftMirror", nmsItemStackClass);
+            metadataDiffing = true;
+        }   catch(RuntimeException ex) {
+            ex.printStackTrace();
+            metadataDiffing = false;
+        }
+    }
+
+    // Convenience method for getting the NMS entity of a bukkit entity
+    public static Object getHandle(Entity entity)   {
+        return entityHandle.invoke(entity);
+    }
+
+    public static Object getPlayerConnection(Entity player) {
+        return playerConnection.get(getHandle(player));
+    }
+
+    public static void sendPacket(Object playerConnection, Object packet)  {
+        sendPacketMethod.invoke(playerConnection, packet);
+    }
+}
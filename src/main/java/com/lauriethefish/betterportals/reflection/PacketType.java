@@ -0,0 +1,48 @@
+package com.lauriethefish.betterportals.reflection;
+
+import com.lauriethefish.betterportals.ReflectUtils;
+
+// Makes packets of one NMS class, and sets the fields that we need to change in them
+public class PacketType {
+    private final Class<?> packetClass;
+    private final ConstructorAccessor constructor;
+    private final FieldAccessor[] fields;
+
+    // fieldNames are the fields that can be set with setFields, in the same order
+    public PacketType(String className, Class<?>[] constructorParams, String... fieldNames)  {
+        Class<?> cla = ReflectUtils.getMcClass(className);
+        packetClass = cla;
+        constructor = new ConstructorAccessor(cla, constructorParams);
+
+        fields = new FieldAccessor[fieldNames.length];
+        for(int i = 0; i < fieldNames.length; i++) {
+            fields[i] = new FieldAccessor(cla, fieldNames[i]);
+        }
+    }
+
+    // Used for packets made with their no-args constructor
+    public PacketType(String className, String... fieldNames)  {
+        this(className, new Class[]{}, fieldNames);
+    }
+
+    public Object create(Object... args)    {
+        return constructor.newInstance(args);
+    }
+
+    // Sets the fields of the packet, in the order that they were given when making this type
+    // Fewer values than fields can be given, in which case only the first fields are set
+    public void setFields(Object packet, Object... values)  {
+        for(int i = 0; i < values.length; i++)  {
+            fields[i].set(packet, values[i]);
+        }
+    }
+
+    // Used for checking the type of packets sent by the server
+    public boolean isInstance(Object packet)    {
+        return packetClass.isInstance(packet);
+    }
+
+    public Object getField(Object packet, int index)    {
+        return fields[index].get(packet);
+    }
+}
@@ -0,0 +1,102 @@
+package com.lauriethefish.betterportals.region;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal reader for the NBT format used in region files
+// Compounds are read as maps, lists as lists, and everything else as the matching java type or array
+public class NBTReader {
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+
+    private DataInput input;
+    public NBTReader(DataInput input)   {
+        this.input = input;
+    }
+
+    // Reads the root compound tag, the name of the root tag is ignored
+    public Map<String, Object> readRoot() throws IOException {
+        int type = input.readUnsignedByte();
+        if(type != TAG_COMPOUND)    {
+            throw new IOException("Root NBT tag was not a compound");
+        }
+        input.readUTF();
+
+        return readCompound();
+    }
+
+    private Map<String, Object> readCompound() throws IOException   {
+        Map<String, Object> result = new HashMap<>();
+        while(true) {
+            int type = input.readUnsignedByte();
+            if(type == TAG_END) {
+                return result;
+            }
+
+            String name = input.readUTF();
+            result.put(name, readPayload(type));
+        }
+    }
+
+    private Object readPayload(int type) throws IOException   {
+        switch(type)    {
+            case TAG_BYTE:
+                return input.readByte();
+            case TAG_SHORT:
+                return input.readShort();
+            case TAG_INT:
+                return input.readInt();
+            case TAG_LONG:
+                return input.readLong();
+            case TAG_FLOAT:
+                return input.readFloat();
+            case TAG_DOUBLE:
+                return input.readDouble();
+            case TAG_BYTE_ARRAY:
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return bytes;
+            case TAG_STRING:
+                return input.readUTF();
+            case TAG_LIST:
+                int elementType = input.readUnsignedByte();
+                int length = input.readInt();
+                List<Object> list = new ArrayList<>(Math.max(length, 0));
+                for(int i = 0; i < length; i++) {
+                    list.add(readPayload(elementType));
+                }
+                return list;
+            case TAG_COMPOUND:
+                return readCompound();
+            case TAG_INT_ARRAY:
+                int[] ints = new int[input.readInt()];
+                for(int i = 0; i < ints.length; i++)    {
+                    ints[i] = input.readInt();
+                }
+                return ints;
+            case TAG_LONG_ARRAY:
+                long[] longs = new long[input.readInt()];
+                for(int i = 0; i < longs.length; i++)   {
+                    longs[i] = input.readLong();
+                }
+                return longs;
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.lauriethefish.betterportals.region;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.lauriethefish.betterportals.multiblockchange.ChunkCoordIntPair;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+// Provides the blocks of a set of chunks read straight from the world's region files
+// This is used to render the destination of portals without loading the chunks there
+public class RegionBlockSource {
+    private Map<ChunkCoordIntPair, RegionChunk> chunks = new HashMap<>();
+
+    private RegionBlockSource() {}
+
+    // Reads all of the given chunks from the region files of the world
+    // Returns null if any of the chunks haven't been saved to disk, since they would need to be generated
+    public static RegionBlockSource load(World world, Set<ChunkCoordIntPair> chunkPositions) throws IOException   {
+        File regionFolder = RegionFile.getFolder(world);
+
+        RegionBlockSource source = new RegionBlockSource();
+        Map<File, RegionFile> regionFiles = new HashMap<>();
+        Map<String, BlockData> blockDataCache = new HashMap<>();
+        try {
+            for(ChunkCoordIntPair position : chunkPositions)    {
+                File file = RegionFile.getFile(regionFolder, position.x, position.z);
+                RegionFile regionFile = regionFiles.get(file);
+                if(regionFile == null)  {
+                    if(!file.exists())  {return null;}
+
+                    regionFile = new RegionFile(file);
+                    regionFiles.put(file, regionFile);
+                }
+
+                Map<String, Object> chunkData = regionFile.readChunk(position.x, position.z);
+                if(chunkData == null)   {return null;}
+
+                RegionChunk chunk = RegionChunk.fromNBT(chunkData, blockDataCache);
+                if(chunk == null)   {return null;}
+                source.chunks.put(position, chunk);
+            }
+        }   finally {
+            // Close the files straight away so that the server isn't stopped from writing to them
+            for(RegionFile regionFile : regionFiles.values())   {
+                regionFile.close();
+            }
+        }
+
+        return source;
+    }
+
+    // Gets the block at the given location, or null if it isn't in one of the loaded chunks
+    public BlockData getBlockData(Location location)    {
+        RegionChunk chunk = chunks.get(new ChunkCoordIntPair(location));
+        if(chunk == null)   {return null;}
+
+        return chunk.getBlockData(location.getBlockX() & 15, location.getBlockY(), location.getBlockZ() & 15);
+    }
+
+    public boolean isOccluding(Location location)   {
+        BlockData data = getBlockData(location);
+        return data != null && data.getMaterial().isOccluding();
+    }
+}
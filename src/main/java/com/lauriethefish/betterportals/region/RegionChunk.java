@@ -0,0 +1,176 @@
+package com.lauriethefish.betterportals.region;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+
+// Stores the blocks of a chunk decoded from a region file
+// Each 16x16x16 section is stored as a palette of BlockData, and an index into the palette for each block
+public class RegionChunk {
+    // Data version of 20w17a (1.16), after this block states no longer span across multiple longs
+    private static final int NON_SPANNING_DATA_VERSION = 2527;
+    // Only made when it's first needed, so that chunks can be decoded without a server in tests
+    private static BlockData airData = null;
+
+    private static class Section {
+        public BlockData[] palette;
+        public short[] indices;
+    }
+
+    private Map<Integer, Section> sections = new HashMap<>();
+
+    private RegionChunk() {}
+
+    // Decodes the chunk from its NBT data, using blockDataCache to avoid parsing the same block state twice
+    // Returns null if the chunk isn't fully generated, or if it is in a format that isn't supported
+    @SuppressWarnings("unchecked")
+    public static RegionChunk fromNBT(Map<String, Object> root, Map<String, BlockData> blockDataCache)    {
+        Object dataVersionTag = root.get("DataVersion");
+        int dataVersion = dataVersionTag instanceof Integer ? (int) dataVersionTag : 0;
+        boolean spanning = dataVersion < NON_SPANNING_DATA_VERSION;
+
+        // Versions before 1.18 store everything inside a Level tag, and use different names for the sections
+        Map<String, Object> level = (Map<String, Object>) root.get("Level");
+        boolean oldFormat = level != null;
+        if(!oldFormat)  {
+            level = root;
+        }
+
+        if(!isFullyGenerated(level.get("Status")))  {return null;}
+
+        Object sectionsTag = level.get(oldFormat ? "Sections" : "sections");
+        if(!(sectionsTag instanceof List))  {return null;}
+
+        RegionChunk chunk = new RegionChunk();
+        for(Object sectionTag : (List<Object>) sectionsTag)  {
+            Map<String, Object> sectionData = (Map<String, Object>) sectionTag;
+
+            List<Object> paletteTag;
+            Object statesTag;
+            if(oldFormat)   {
+                paletteTag = (List<Object>) sectionData.get("Palette");
+                statesTag = sectionData.get("BlockStates");
+            }   else    {
+                Map<String, Object> blockStates = (Map<String, Object>) sectionData.get("block_states");
+                if(blockStates == null) {continue;}
+                paletteTag = (List<Object>) blockStates.get("palette");
+                statesTag = blockStates.get("data");
+            }
+            // Sections with no palette only contain light data
+            if(paletteTag == null || paletteTag.isEmpty())  {continue;}
+
+            Section section = new Section();
+            section.palette = new BlockData[paletteTag.size()];
+            for(int i = 0; i < section.palette.length; i++) {
+                section.palette[i] = getBlockData((Map<String, Object>) paletteTag.get(i), blockDataCache);
+            }
+
+            if(statesTag instanceof long[]) {
+                int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(section.palette.length - 1));
+                section.indices = unpackIndices((long[]) statesTag, bits, spanning);
+                if(section.indices == null) {return null;}
+            }   else if(section.palette.length == 1)    {
+                // If there's only one block state in the section, newer versions don't store the indices at all
+                section.indices = new short[4096];
+            }   else    {
+                return null;
+            }
+
+            chunk.sections.put((int) (byte) sectionData.get("Y"), section);
+        }
+
+        return chunk;
+    }
+
+    private static BlockData getAirData()   {
+        if(airData == null) {
+            airData = Bukkit.createBlockData(Material.AIR);
+        }
+        return airData;
+    }
+
+    // Chunks that aren't fully generated would look wrong, so we only use full chunks
+    private static boolean isFullyGenerated(Object status)  {
+        if(!(status instanceof String)) {return false;}
+
+        String statusName = ((String) status).replace("minecraft:", "");
+        return statusName.equals("full") || statusName.equals("fullchunk") || statusName.equals("postprocessed");
+    }
+
+    // Converts a palette entry into a BlockData, e.g. {Name: "minecraft:oak_log", Properties: {axis: "y"}} becomes minecraft:oak_log[axis=y]
+    @SuppressWarnings("unchecked")
+    private static BlockData getBlockData(Map<String, Object> entry, Map<String, BlockData> blockDataCache) {
+        StringBuilder builder = new StringBuilder((String) entry.get("Name"));
+        Map<String, Object> properties = (Map<String, Object>) entry.get("Properties");
+        if(properties != null && !properties.isEmpty())   {
+            builder.append('[');
+            boolean first = true;
+            for(Map.Entry<String, Object> property : properties.entrySet()) {
+                if(!first)  {builder.append(',');}
+                builder.append(property.getKey()).append('=').append(property.getValue());
+                first = false;
+            }
+            builder.append(']');
+        }
+
+        String blockState = builder.toString();
+        BlockData data = blockDataCache.get(blockState);
+        if(data == null)    {
+            try {
+                data = Bukkit.createBlockData(blockState);
+            }   catch(IllegalArgumentException ex)  {
+                // Blocks from a newer data version may not exist on this server
+                data = getAirData();
+            }
+            blockDataCache.put(blockState, data);
+        }
+        return data;
+    }
+
+    // Unpacks the palette indices of the 4096 blocks in a section from an array of longs
+    // Returns null if the array is too short for the number of bits
+    public static short[] unpackIndices(long[] data, int bits, boolean spanning)  {
+        short[] result = new short[4096];
+        long mask = (1L << bits) - 1;
+
+        if(spanning)    {
+            // Older versions pack the indices tightly, so one index may be split between two longs
+            if(data.length * 64L < 4096L * bits)    {return null;}
+            for(int i = 0; i < 4096; i++)   {
+                long bitIndex = (long) i * bits;
+                int longIndex = (int) (bitIndex >> 6);
+                int offset = (int) (bitIndex & 63);
+
+                long value = data[longIndex] >>> offset;
+                if(offset + bits > 64)  {
+                    value |= data[longIndex + 1] << (64 - offset);
+                }
+                result[i] = (short) (value & mask);
+            }
+        }   else    {
+            // Newer versions leave the leftover bits of each long empty
+            int perLong = 64 / bits;
+            if(data.length < (4096 + perLong - 1) / perLong)    {return null;}
+            for(int i = 0; i < 4096; i++)   {
+                long value = data[i / perLong] >>> ((i % perLong) * bits);
+                result[i] = (short) (value & mask);
+            }
+        }
+        return result;
+    }
+
+    // Gets the block at the given coordinates, x and z are relative to the chunk, but y is not
+    public BlockData getBlockData(int x, int y, int z)  {
+        Section section = sections.get(y >> 4);
+        if(section == null) {
+            return getAirData();
+        }
+
+        int index = section.indices[(y & 15) << 8 | z << 4 | x];
+        return index < section.palette.length ? section.palette[index] : getAirData();
+    }
+}
@@ -0,0 +1,117 @@
+package com.lauriethefish.betterportals.region;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.bukkit.World;
+
+// Read-only access to an anvil region file (r.x.z.mca), which stores 32x32 chunks
+// Only the header and the chunks that are actually read are copied out of the file
+// The server may be writing to the file at the same time, so anything that is cut short is treated as a chunk that hasn't been saved
+public class RegionFile implements Closeable {
+    private static final int SECTOR_SIZE = 4096;
+
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    // The first sector of the file, which stores where each chunk is. Null if the file is too short to have one
+    private ByteBuffer header;
+
+    public RegionFile(File file) throws IOException   {
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+
+        ByteBuffer buffer = ByteBuffer.allocate(SECTOR_SIZE);
+        if(readFully(buffer, 0))    {
+            header = buffer;
+        }
+    }
+
+    // Reads until the buffer is full, returns false if the end of the file is reached first
+    private boolean readFully(ByteBuffer buffer, long position) throws IOException    {
+        while(buffer.hasRemaining())    {
+            int read = channel.read(buffer, position);
+            if(read < 0)    {return false;}
+            position += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException  {
+        file.close();
+    }
+
+    // Finds the folder that the region files of a world are in, nether and end worlds store them in a subfolder
+    public static File getFolder(World world)   {
+        File worldFolder = world.getWorldFolder();
+        switch(world.getEnvironment())  {
+            case NETHER:
+                return new File(worldFolder, "DIM-1/region");
+            case THE_END:
+                return new File(worldFolder, "DIM1/region");
+            default:
+                return new File(worldFolder, "region");
+        }
+    }
+
+    // Finds the file for the region containing the given chunk
+    public static File getFile(File regionFolder, int chunkX, int chunkZ)  {
+        return new File(regionFolder, String.format("r.%d.%d.mca", chunkX >> 5, chunkZ >> 5));
+    }
+
+    // Reads the NBT data of the given chunk, or returns null if the chunk has not been saved in this region
+    public Map<String, Object> readChunk(int chunkX, int chunkZ) throws IOException  {
+        if(header == null)  {return null;}
+
+        // The header stores 3 bytes for the sector offset of each chunk, then 1 byte for the sector count
+        int location = header.getInt(((chunkX & 31) + (chunkZ & 31) * 32) * 4);
+        int sectorOffset = location >>> 8;
+        if(sectorOffset == 0)   {return null;}
+
+        // Each chunk starts with its length (including the compression type), then the compression type
+        long start = (long) sectorOffset * SECTOR_SIZE;
+        ByteBuffer chunkHeader = ByteBuffer.allocate(5);
+        if(!readFully(chunkHeader, start))  {return null;}
+
+        int length = chunkHeader.getInt();
+        int compression = chunkHeader.get();
+        if(length <= 1 || start + 4 + length > channel.size())  {return null;}
+
+        ByteBuffer data = ByteBuffer.allocate(length - 1);
+        if(!readFully(data, start + 5)) {return null;}
+
+        InputStream stream = new ByteArrayInputStream(data.array());
+        switch(compression) {
+            case COMPRESSION_GZIP:
+                stream = new GZIPInputStream(stream);
+                break;
+            case COMPRESSION_ZLIB:
+                stream = new InflaterInputStream(stream);
+                break;
+            case COMPRESSION_NONE:
+                break;
+            default:
+                // Externally stored chunks (compression type + 128) are not supported
+                return null;
+        }
+
+        try(DataInputStream input = new DataInputStream(stream))  {
+            return new NBTReader(input).readRoot();
+        }
+    }
+}
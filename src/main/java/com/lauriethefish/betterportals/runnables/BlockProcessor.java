@@ -1,15 +1,26 @@
 package com.lauriethefish.betterportals.runnables;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.lauriethefish.betterportals.BetterPortals;
 import com.lauriethefish.betterportals.BlockRaycastData;
 import com.lauriethefish.betterportals.PlayerData;
+import com.lauriethefish.betterportals.math.PackedBlockPositions;
 import com.lauriethefish.betterportals.math.PlaneIntersectionChecker;
 import com.lauriethefish.betterportals.multiblockchange.MultiBlockChangeManager;
+import com.lauriethefish.betterportals.network.GhostBlocks;
+import com.lauriethefish.betterportals.network.PacketPriority;
 import com.lauriethefish.betterportals.portal.Portal;
 
 import org.bukkit.entity.Player;
@@ -27,14 +38,103 @@ public class BlockProcessor implements Runnable {
         }
     }
 
-    private BlockingQueue<UpdateData> updateQueue = new LinkedBlockingQueue<>(); 
+    private BetterPortals pl;
+    private BlockingQueue<UpdateData> updateQueue = new LinkedBlockingQueue<>();
+
+    // Used in same tick rendering mode, the updates are run on these threads, and joined at the end of the tick
+    // Updates from movement packets are also run on these threads
+    private ExecutorService renderWorkers = null;
+    private List<UpdateData> sameTickUpdates = new ArrayList<>();
+
     public BlockProcessor(BetterPortals pl) {
+        this.pl = pl;
+        if(pl.config.sameTickRendering || pl.config.movementPacketRendering) {
+            renderWorkers = Executors.newFixedThreadPool(pl.config.renderThreads, runnable -> {
+                Thread thread = new Thread(runnable, "BetterPortals Render Worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
         pl.getServer().getScheduler().runTaskTimerAsynchronously(pl, this, 0, 1);
     }
 
     // Adds a new update to the queue to be processed asyncronously
+    // In same tick mode, this is held until processSameTickUpdates is called instead
     public void queueUpdate(PlayerData playerData, PlaneIntersectionChecker checker, Portal portal)  {
-        updateQueue.add(new UpdateData(playerData, checker, portal));
+        UpdateData data = new UpdateData(playerData, checker, portal);
+        if(pl.config.sameTickRendering)   {
+            sameTickUpdates.add(data);
+        }   else    {
+            updateQueue.add(data);
+        }
+    }
+
+    // Runs all of the updates queued this tick on the render workers, then waits for them to finish
+    // Any updates that haven't started before the timeout are moved to the async task
+    public void processSameTickUpdates()    {
+        if(sameTickUpdates.isEmpty())  {return;}
+
+        List<Future<?>> results = new ArrayList<>(sameTickUpdates.size());
+        for(UpdateData data : sameTickUpdates)  {
+            results.add(renderWorkers.submit(() -> handleUpdate(data)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pl.config.sameTickRenderTimeout);
+        for(int i = 0; i < results.size(); i++) {
+            Future<?> result = results.get(i);
+            try {
+                result.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            }   catch(TimeoutException ex)  {
+                // If the update hasn't started yet, let the async task do it instead. Otherwise it'll just finish on the worker
+                if(result.cancel(false))    {
+                    updateQueue.add(sameTickUpdates.get(i));
+                }
+            }   catch(ExecutionException ex)    {
+                ex.getCause().printStackTrace();
+            }   catch(InterruptedException ex)  {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        sameTickUpdates.clear();
+    }
+
+    // Re-renders the player's view from the newest position that they sent in a movement packet
+    // Called from the netty threads, so the rendering itself is done on the render workers
+    public void queueMovementUpdate(PlayerData playerData)  {
+        // Players with a lowered quality level already can't keep up with the updates every tick
+        if(playerData.getConnectionMonitor().getQualityLevel() > 0 || renderWorkers.isShutdown()) {
+            playerData.getPendingMovement().set(null);
+            return;
+        }
+
+        try {
+            renderWorkers.execute(() -> {
+                Vector position = playerData.getPendingMovement().getAndSet(null);
+                Portal portal = playerData.getLastActivePortal();
+                if(position == null || portal == null)  {return;}
+
+                Vector eyePosition = position.setY(position.getY() + playerData.getPlayer().getEyeHeight());
+                handleUpdate(new UpdateData(playerData, new PlaneIntersectionChecker(eyePosition, portal), portal));
+            });
+        }   catch(RejectedExecutionException ex)    {
+            // The workers were shut down after the check above, the plugin is being disabled so the movement is just dropped
+            playerData.getPendingMovement().set(null);
+        }
+    }
+
+    // Stops the render workers, called when the plugin is disabled
+    public void shutdown()  {
+        if(renderWorkers != null)   {
+            renderWorkers.shutdownNow();
+        }
+
+        // Movements that were waiting for a render worker won't be rendered now
+        for(PlayerData playerData : pl.getPlayers())    {
+            playerData.getPendingMovement().set(null);
+        }
     }
 
     @Override
@@ -52,6 +152,18 @@ public class BlockProcessor implements Runnable {
 
     // Processes the given update by sending the correctly changed blocks to the player
     private void handleUpdate(UpdateData data)    {
+        // Updates for the same player may be running on more than one thread, for instance if the same tick render timed out
+        synchronized(data.playerData)   {
+            handleUpdateInternal(data);
+        }
+    }
+
+    private void handleUpdateInternal(UpdateData data)    {
+        // The player may have switched portals since this update was queued, in which case their ghost blocks have already been reset
+        if(data.portal != data.playerData.getLastActivePortal())   {
+            return;
+        }
+
         if(data.portal.getQueueBlockUpdate().compareAndSet(true, false))    {
             data.portal.findCurrentBlocks();
         }
@@ -62,27 +174,68 @@ public class BlockProcessor implements Runnable {
             return;
         }
 
-        List<BlockRaycastData> currentBlocks = data.portal.getCurrentBlocks(); // Store the current blocks incase they change while being processed
-        MultiBlockChangeManager changeManager = MultiBlockChangeManager.createInstance(player);
+        PackedBlockPositions positions = data.portal.getCurrentBlockPositions(); // Store the current blocks incase they change while being processed
+        if(positions == null)   {return;} // The portal may not have been scanned yet if this update came from a movement packet
+        MultiBlockChangeManager changeManager = data.playerData.getBlockChangeManager();
         Map<Vector, Object> blockStates = data.playerData.getSurroundingPortalBlockStates();
+        GhostBlocks ghostBlocks = data.playerData.getGhostBlocks();
+
+        // Check the visibility of all of the blocks at once
+        long[] visibleMask = positions.createMask();
+        data.checker.checkIfVisibleThroughPortal(positions, visibleMask);
+
+        // Blocks far from the portal can be held back if the player is being sent too much
+        Vector portalPos = data.portal.getOriginPos().toVector();
+        double highPriorityDistanceSq = pl.config.highPriorityBlockDistance * pl.config.highPriorityBlockDistance;
+        // If the player's quality level has been lowered, blocks outside of the smaller radius are shown as they are in the world
+        double radiusMultiplier = data.playerData.getConnectionMonitor().getRadiusMultiplier();
+        double maxDistance = data.portal.getRenderSettings().maxXZ * radiusMultiplier;
+        double maxDistanceSq = radiusMultiplier < 1.0 ? maxDistance * maxDistance : Double.POSITIVE_INFINITY;
+
+        // The main thread may also be sending changes with this manager
+        boolean sentWholeSections;
+        synchronized(changeManager) {
+            // Whole sections are read from the world, so this is only allowed off the main thread in unsafe mode
+            changeManager.enableWholeSections(blockStates, pl.config.unsafeMode ? pl.config.wholeSectionThreshold : 0);
+            // Players standing together in front of the same portal are often sent the same changes
+            if(data.portal.getViewerCount() > 1)    {
+                changeManager.enableSharedPackets();
+            }
 
-        for(BlockRaycastData raycastData : currentBlocks)    {
-            Vector originPos = raycastData.getOriginVec();              
-            // Check if the block is visible
-            boolean visible = data.checker.checkIfVisibleThroughPortal(originPos);
+            List<BlockRaycastData> currentBlocks = positions.getBlocks();
+            for(int i = 0; i < positions.getSize(); i++)    {
+                BlockRaycastData raycastData = currentBlocks.get(i);
+                Vector originPos = raycastData.getOriginVec();
+                boolean visible = PackedBlockPositions.isSet(visibleMask, i) && originPos.distanceSquared(portalPos) <= maxDistanceSq;
 
-            Object oldState = blockStates.get(originPos); // Find if it was visible last tick
-            Object newState = visible ? raycastData.getDestData() : raycastData.getOriginData();
+                Object oldState = blockStates.get(originPos); // Find if it was visible last tick
+                Object newState = visible ? raycastData.getDestData() : raycastData.getOriginData();
 
-            // If we are overwriting the block, change it in the player's block array and send them a block update
-            if(!newState.equals(oldState)) {
-                blockStates.put(originPos, newState);
-                changeManager.addChange(originPos, newState);
+                // If we are overwriting the block, change it in the player's block array and send them a block update
+                if(!newState.equals(oldState)) {
+                    blockStates.put(originPos, newState);
+                    if(visible) {
+                        ghostBlocks.put(originPos.getBlockX(), originPos.getBlockY(), originPos.getBlockZ(), newState);
+                    }   else    {
+                        ghostBlocks.remove(originPos.getBlockX(), originPos.getBlockY(), originPos.getBlockZ());
+                    }
+                    boolean nearPortal = originPos.distanceSquared(portalPos) <= highPriorityDistanceSq;
+                    changeManager.addChange(originPos, newState, nearPortal ? PacketPriority.HIGH : PacketPriority.LOW);
+                }
             }
+
+            // Send all the block changes
+            changeManager.sendChanges();
+            sentWholeSections = changeManager.sentWholeSections();
+        }
+
+        // Whole sections are sent with the portal blocks from the world, so they need to be hidden again
+        if(sentWholeSections && pl.config.hidePortalBlocks && !data.portal.isCustom())  {
+            data.portal.removePortalBlocks(data.playerData);
         }
 
-        // Send all the block changes
-        changeManager.sendChanges();
+        // Write all of the changes from this update to the player's connection at once
+        data.playerData.getPacketScheduler().flush();
     }
-    
+
 }
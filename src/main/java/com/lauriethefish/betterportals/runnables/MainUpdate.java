@@ -1,7 +1,9 @@
 package com.lauriethefish.betterportals.runnables;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -12,23 +14,33 @@ import com.lauriethefish.betterportals.ReflectUtils;
 import com.lauriethefish.betterportals.entitymanipulation.EntityManipulator;
 import com.lauriethefish.betterportals.math.PlaneIntersectionChecker;
 import com.lauriethefish.betterportals.multiblockchange.ChunkCoordIntPair;
+import com.lauriethefish.betterportals.multiblockchange.SharedPacketCache;
+import com.lauriethefish.betterportals.portal.EntityIndex;
 import com.lauriethefish.betterportals.portal.Portal;
 
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
+import lombok.Getter;
+
 // Casts a ray from each player every tick
 // If it passes through the portal, set the end of it to a redstone block
 public class MainUpdate implements Runnable {
     private BetterPortals pl;
 
     private int currentTick = 0;
+    // How many ticks apart the connection of each player is checked for adaptive quality
+    private static final int QUALITY_CHECK_INTERVAL = 20;
     private Config config;
 
     private Set<ChunkCoordIntPair> newForceLoadedChunks = new HashSet<>();
+    // The number of players that each portal was active for this tick
+    private Map<Portal, Integer> viewerCounts = new HashMap<>();
 
-    private BlockProcessor blockRenderer;
+    @Getter private BlockProcessor blockRenderer;
+    // Finds the entities around active portals, if useEntityIndex is enabled
+    @Getter private EntityIndex entityIndex = new EntityIndex();
     public MainUpdate(BetterPortals pl) {
         blockRenderer = new BlockProcessor(pl);
         this.pl = pl;
@@ -38,6 +50,13 @@ public class MainUpdate implements Runnable {
         pl.getServer().getScheduler().scheduleSyncRepeatingTask(pl, this, 0, 1);
     }
 
+    // Stops any threads used for rendering portals
+    public void shutdown()  {
+        blockRenderer.shutdown();
+        SharedPacketCache.clear();
+        entityIndex.clear();
+    }
+
     // Called by portals while they are active to keep chunks loaded
     public void keepChunksForceLoaded(Set<ChunkCoordIntPair> chunks)  {
         newForceLoadedChunks.addAll(chunks);
@@ -80,7 +99,15 @@ public class MainUpdate implements Runnable {
     public void updatePortal(PlayerData playerData, Portal portal, PlaneIntersectionChecker checker) {        
         // Optimisation: Check if the player has moved before re-rendering the view
         Vector currentLoc = playerData.getPlayer().getLocation().toVector();
-        if(currentLoc.equals(playerData.getLastPosition()))  {return;}
+        if(currentLoc.equals(playerData.getLastPosition()) && !playerData.isRenderPending())  {return;}
+
+        // At lower quality levels, the view is only rendered every few ticks. The player's movement is rendered at the next one
+        if(currentTick % playerData.getConnectionMonitor().getUpdateInterval() != 0)   {
+            playerData.setRenderPending(true);
+            return;
+        }
+        playerData.setRenderPending(false);
+
         // Queue an update to happen on the async task
         blockRenderer.queueUpdate(playerData, checker, portal);
     }
@@ -88,42 +115,17 @@ public class MainUpdate implements Runnable {
     private void updateEntities(PlayerData playerData, Portal portal, PlaneIntersectionChecker checker)  {
         EntityManipulator manipulator = playerData.getEntityManipulator();
 
-        // We need to loop through the entities at the origin regardless of if entities are enabled, since we also need to teleport those going through portals
-        Set<Entity> hiddenEntities = new HashSet<>();
-
-        Iterator<Map.Entry<Entity, Vector>> iter = portal.getNearbyEntitiesOrigin().entrySet().iterator();
-        while(iter.hasNext())   {
-            Map.Entry<Entity, Vector> entry = iter.next();
-
-            Entity entity = entry.getKey();
-            Vector lastKnownLocation = entry.getValue();
-
-            // If the entity isn't in the same world, we skip it
-            if(entity.getWorld() != portal.getOriginPos().getWorld())   {
-                iter.remove();
-                continue;
-            }
-
-            Vector actualLocation = entity.getLocation().toVector();
-            // Teleport the entity if it walked through a portal
-            PlaneIntersectionChecker teleportChecker = new PlaneIntersectionChecker(actualLocation, portal);
-            if(!(entity instanceof Player) && lastKnownLocation != null && teleportChecker.checkIfVisibleThroughPortal(lastKnownLocation))  {
-                portal.teleportEntity(entity);
-                portal.getNearbyEntitiesDestination().add(entity);
-                iter.remove();
-            }
-
-            // Set the location back to the actual location
-            entry.setValue(actualLocation);
+        // Entities going through the portal have already been teleported by Portal.update
+        if(!portal.getRenderSettings().enableEntitySupport)  {return;}
 
+        Set<Entity> hiddenEntities = new HashSet<>();
+        for(Entity entity : portal.getNearbyEntitiesOrigin().keySet())  {
             // If an entity is visible through the portal, then we hide it
-            if(pl.config.enableEntitySupport && checker.checkIfVisibleThroughPortal(entity.getLocation().toVector()))  {
+            if(checker.checkIfVisibleThroughPortal(entity.getLocation().toVector()))  {
                 hiddenEntities.add(entity);
             }
         }
 
-        if(!pl.config.enableEntitySupport)  {return;}
-
         Set<Entity> replicatedEntities = new HashSet<>();
         for(Entity entity : portal.getNearbyEntitiesDestination())   {
             // Don't replicate entities almost exactly in line 
@@ -145,9 +147,25 @@ public class MainUpdate implements Runnable {
 
     @Override
     public void run() {
-        // Loop through every online player
+        // Packets shared between players last tick won't be used again
+        SharedPacketCache.clear();
+        if(config.useEntityIndex)   {
+            entityIndex.tick();
+        }
+
+        // Find the portal for every online player first, so that the number of players viewing each portal is known before any are rendered
+        List<PlayerData> activePlayers = new ArrayList<>();
+        List<Portal> activePortals = new ArrayList<>();
+        // Portals that were viewed last tick might not be viewed now
+        viewerCounts.keySet().forEach(portal -> portal.setViewerCount(0));
+        viewerCounts.clear();
         for (Player player : pl.getServer().getOnlinePlayers()) {
             PlayerData playerData = pl.getPlayerData(player);
+            // Send any packets held back last tick, now that there's a new budget
+            playerData.getPacketScheduler().startTick();
+            if(config.adaptiveQuality && currentTick % QUALITY_CHECK_INTERVAL == 0)    {
+                playerData.getConnectionMonitor().check();
+            }
 
             // If we changed worlds in the last tick, we wait to avoid chunks not being loaded while sending updates
             if(playerData.checkIfDisabled())    {
@@ -156,6 +174,18 @@ public class MainUpdate implements Runnable {
 
             // Find the closest portal to the player
             Portal portal = findClosestPortal(player);
+            activePlayers.add(playerData);
+            activePortals.add(portal);
+            if(portal != null)  {
+                viewerCounts.merge(portal, 1, Integer::sum);
+            }
+        }
+        viewerCounts.forEach(Portal::setViewerCount);
+
+        for(int i = 0; i < activePlayers.size(); i++)  {
+            PlayerData playerData = activePlayers.get(i);
+            Player player = playerData.getPlayer();
+            Portal portal = activePortals.get(i);
 
             playerData.setPortal(portal);
             // If no portals were found, don't update anything
@@ -178,6 +208,14 @@ public class MainUpdate implements Runnable {
             playerData.setLastPosition(player.getLocation().toVector());
         }
 
+        // If same tick rendering is enabled, wait for the portal views to be rendered before the end of the tick
+        blockRenderer.processSameTickUpdates();
+
+        // Write everything sent to each player this tick with one flush
+        for(PlayerData playerData : pl.getPlayers())    {
+            playerData.getPacketScheduler().flush();
+        }
+
         currentTick++;
 
         // If we are using the force loading method, unforceload any chunks that are no longer loaded by portals
@@ -52,4 +52,19 @@ public class MathUtilsTests {
         assertTrue(MathUtils.lessThanEq(new Vector(3.0, 5.0, 2.0), new Vector(3.1, 5.1, 2.0)));
         assertFalse(MathUtils.lessThanEq(new Vector(3.1, 5.1, 2.0), new Vector(3.0, 5.0, 2.0)));
     }
+
+    @Test
+    void packBlockPositionTest()    {
+        // Includes negative coordinates, the world border, and the ends of the 12 bit Y range
+        int[][] positions = {{0, 0, 0}, {-1, -1, -1}, {15, 255, -16}, {-30000000, -64, 30000000}, {30000000, 319, -30000000},
+                                {123, -2048, -456}, {-789, 2047, 1011}};
+        for(int[] position : positions) {
+            long packed = MathUtils.packBlockPosition(position[0], position[1], position[2]);
+            assertEquals(position[0], MathUtils.unpackBlockX(packed));
+            assertEquals(position[1], MathUtils.unpackBlockY(packed));
+            assertEquals(position[2], MathUtils.unpackBlockZ(packed));
+        }
+
+        assertNotEquals(MathUtils.packBlockPosition(1, 2, 3), MathUtils.packBlockPosition(3, 2, 1));
+    }
 }
@@ -0,0 +1,50 @@
+package com.lauriethefish.betterportals;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import com.lauriethefish.betterportals.region.NBTReader;
+
+import org.junit.jupiter.api.Test;
+
+public class NBTReaderTests {
+    @Test
+    @SuppressWarnings("unchecked")
+    void readSectionCompound() throws IOException   {
+        // Write a root compound containing a list with one section, similar to the Sections tag of a chunk
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(10); output.writeUTF("");
+            output.writeByte(3); output.writeUTF("DataVersion"); output.writeInt(2586);
+            output.writeByte(9); output.writeUTF("Sections"); output.writeByte(10); output.writeInt(1);
+                output.writeByte(1); output.writeUTF("Y"); output.writeByte(4);
+                output.writeByte(12); output.writeUTF("BlockStates"); output.writeInt(2); output.writeLong(1L); output.writeLong(-1L);
+                output.writeByte(8); output.writeUTF("Name"); output.writeUTF("minecraft:stone");
+            output.writeByte(0);
+        output.writeByte(0);
+
+        Map<String, Object> root = new NBTReader(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))).readRoot();
+        assertEquals(2586, root.get("DataVersion"));
+
+        List<Object> sections = (List<Object>) root.get("Sections");
+        assertEquals(1, sections.size());
+
+        Map<String, Object> section = (Map<String, Object>) sections.get(0);
+        assertEquals((byte) 4, section.get("Y"));
+        assertArrayEquals(new long[]{1L, -1L}, (long[]) section.get("BlockStates"));
+        assertEquals("minecraft:stone", section.get("Name"));
+    }
+
+    @Test
+    void rejectsNonCompoundRoot()   {
+        byte[] bytes = new byte[]{8, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> new NBTReader(new DataInputStream(new ByteArrayInputStream(bytes))).readRoot());
+    }
+}
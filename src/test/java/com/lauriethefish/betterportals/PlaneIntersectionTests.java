@@ -2,7 +2,12 @@ package com.lauriethefish.betterportals;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.Random;
+
+import com.lauriethefish.betterportals.math.MathUtils;
+import com.lauriethefish.betterportals.math.PackedBlockPositions;
 import com.lauriethefish.betterportals.math.PlaneIntersectionChecker;
+import com.lauriethefish.betterportals.math.PortalPlane;
 
 import org.bukkit.util.Vector;
 import org.junit.jupiter.api.Test;
@@ -27,4 +32,58 @@ public class PlaneIntersectionTests {
         Vector blockPos = new Vector(-5.0, 0.0, 20.0);
         assertFalse(checker.checkIfVisibleThroughPortal(blockPos), "Block returned as visible when it wasn't");
     }
+
+    @Test
+    void batchMatchesSingleChecks() {
+        Random random = new Random(0);
+        for(int i = 0; i < 20; i++) {
+            Vector origin = new Vector(random.nextDouble() * 20.0 - 10.0, random.nextDouble() * 6.0 - 3.0, random.nextDouble() * 20.0 - 10.0);
+            PlaneIntersectionChecker checker = new PlaneIntersectionChecker(new Vector(0.0, 0.0, 0.0), new Vector(0.0, 0.0, 1.0), origin);
+
+            PackedBlockPositions positions = makeBox(13, 7);
+            long[] mask = positions.createMask();
+            checker.checkIfVisibleThroughPortal(positions, mask);
+
+            int index = 0;
+            for(double z = -13.0; z <= 13.0; z++) {
+                for(double y = -7.0; y <= 7.0; y++) {
+                    for(double x = -13.0; x <= 13.0; x++) {
+                        boolean expected = checker.checkIfVisibleThroughPortal(new Vector(x + 0.5, y + 0.5, z + 0.5));
+                        assertEquals(expected, PackedBlockPositions.isSet(mask, index), "Batch check differed from single check");
+                        index++;
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void portalPlaneFindsCrossings()  {
+        PortalPlane plane = new PortalPlane(new Vector(0.0, 0.0, 0.0), new Vector(0.0, 0.0, 1.0), new Vector(1.5, 2.5, 0.5));
+
+        assertEquals(0.25, plane.findCrossing(0.0, 0.0, 1.0, 0.0, 0.0, -3.0), MathUtils.EPSILON, "Crossing was at the wrong point");
+        assertEquals(0.5, plane.findCrossing(1.0, 1.0, -2.0, 1.0, 1.0, 2.0), MathUtils.EPSILON, "Crossing from behind wasn't found");
+        // Moving far enough in one tick to skip over the portal
+        assertTrue(plane.findCrossing(0.0, 0.0, 10.0, 0.0, 0.0, -10.0) >= 0.0, "Fast crossing wasn't found");
+
+        assertTrue(plane.findCrossing(2.0, 0.0, 1.0, 2.0, 0.0, -1.0) < 0.0, "Crossing outside of the portal was found");
+        assertTrue(plane.findCrossing(0.0, 0.0, 1.0, 0.0, 0.0, 0.5) < 0.0, "Crossing was found without going through the plane");
+    }
+
+    // Makes the positions of every block center in a box around the origin, in the same order that portals are scanned
+    private PackedBlockPositions makeBox(int sizeXZ, int sizeY)  {
+        int length = (sizeXZ * 2 + 1) * (sizeXZ * 2 + 1) * (sizeY * 2 + 1);
+        double[] xs = new double[length]; double[] ys = new double[length]; double[] zs = new double[length];
+
+        int index = 0;
+        for(double z = -sizeXZ; z <= sizeXZ; z++) {
+            for(double y = -sizeY; y <= sizeY; y++) {
+                for(double x = -sizeXZ; x <= sizeXZ; x++) {
+                    xs[index] = x + 0.5; ys[index] = y + 0.5; zs[index] = z + 0.5;
+                    index++;
+                }
+            }
+        }
+        return new PackedBlockPositions(xs, ys, zs);
+    }
 }
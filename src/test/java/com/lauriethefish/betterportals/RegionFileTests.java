@@ -0,0 +1,177 @@
+package com.lauriethefish.betterportals;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import com.lauriethefish.betterportals.region.RegionChunk;
+import com.lauriethefish.betterportals.region.RegionFile;
+
+import org.bukkit.block.data.BlockData;
+import org.junit.jupiter.api.Test;
+
+public class RegionFileTests {
+    @Test
+    void readChunkFromRegion() throws IOException   {
+        File file = writeRegion(makeChunkNBT());
+        try(RegionFile region = new RegionFile(file))   {
+            Map<String, Object> root = region.readChunk(0, 0);
+            assertNotNull(root, "Saved chunk wasn't found");
+            assertEquals(2586, root.get("DataVersion"));
+
+            assertNull(region.readChunk(1, 0), "Chunk that wasn't saved was found");
+        }   finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void truncatedChunkIsIgnored() throws IOException   {
+        File file = writeRegion(makeChunkNBT());
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"))   {
+            // Cut the file off part of the way through the chunk, as if the server was writing it
+            randomAccessFile.setLength(2 * 4096 + 10);
+        }
+
+        try(RegionFile region = new RegionFile(file))   {
+            assertNull(region.readChunk(0, 0), "Truncated chunk was read");
+        }   finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void unpackSpanningIndices()    {
+        short[] indices = makeIndices(5);
+        assertArrayEquals(indices, RegionChunk.unpackIndices(pack(indices, 5, true), 5, true));
+    }
+
+    @Test
+    void unpackNonSpanningIndices() {
+        short[] indices = makeIndices(5);
+        assertArrayEquals(indices, RegionChunk.unpackIndices(pack(indices, 5, false), 5, false));
+        assertNull(RegionChunk.unpackIndices(new long[10], 5, false), "Too short array was unpacked");
+    }
+
+    @Test
+    void decodeChunkSections()  {
+        // Use a cache with the palette entries already in it, since making BlockData needs a server
+        BlockData stone = makeBlockData(); BlockData dirt = makeBlockData();
+        Map<String, BlockData> blockDataCache = new HashMap<>();
+        blockDataCache.put("minecraft:stone", stone);
+        blockDataCache.put("minecraft:dirt", dirt);
+
+        RegionChunk chunk = RegionChunk.fromNBT(makeChunkMap("full"), blockDataCache);
+        assertNotNull(chunk, "Full chunk wasn't decoded");
+        // Every other block in the section is dirt
+        assertSame(stone, chunk.getBlockData(0, 16, 0));
+        assertSame(dirt, chunk.getBlockData(1, 16, 0));
+        assertSame(dirt, chunk.getBlockData(15, 31, 15));
+
+        assertNull(RegionChunk.fromNBT(makeChunkMap("features"), blockDataCache), "Chunk that wasn't fully generated was decoded");
+    }
+
+    // Makes a 1.16 style chunk with one section at Y 1, alternating between stone and dirt
+    private Map<String, Object> makeChunkMap(String status) {
+        short[] indices = new short[4096];
+        for(int i = 0; i < indices.length; i++) {
+            indices[i] = (short) (i & 1);
+        }
+
+        List<Object> palette = new ArrayList<>();
+        for(String name : new String[]{"minecraft:stone", "minecraft:dirt"})    {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("Name", name);
+            palette.add(entry);
+        }
+
+        Map<String, Object> section = new HashMap<>();
+        section.put("Y", (byte) 1);
+        section.put("Palette", palette);
+        section.put("BlockStates", pack(indices, 4, false));
+        List<Object> sections = new ArrayList<>();
+        sections.add(section);
+
+        Map<String, Object> level = new HashMap<>();
+        level.put("Status", status);
+        level.put("Sections", sections);
+        Map<String, Object> root = new HashMap<>();
+        root.put("DataVersion", 2586);
+        root.put("Level", level);
+        return root;
+    }
+
+    // Makes the NBT of a root compound with only a data version
+    private byte[] makeChunkNBT() throws IOException  {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes));
+        output.writeByte(10); output.writeUTF("");
+            output.writeByte(3); output.writeUTF("DataVersion"); output.writeInt(2586);
+        output.writeByte(0);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    // Writes a region file with the given zlib compressed chunk as chunk 0, 0 in the sector after the header
+    private File writeRegion(byte[] compressedChunk) throws IOException   {
+        File file = File.createTempFile("r.0.0", ".mca");
+        try(DataOutputStream output = new DataOutputStream(new FileOutputStream(file)))    {
+            int sectors = (compressedChunk.length + 5 + 4095) / 4096;
+            output.writeInt(2 << 8 | sectors);
+            output.write(new byte[2 * 4096 - 4]);
+
+            output.writeInt(compressedChunk.length + 1);
+            output.writeByte(2);
+            output.write(compressedChunk);
+            output.write(new byte[sectors * 4096 - compressedChunk.length - 5]);
+        }
+        return file;
+    }
+
+    private short[] makeIndices(int bits)   {
+        short[] indices = new short[4096];
+        for(int i = 0; i < indices.length; i++) {
+            indices[i] = (short) ((i * 7) & ((1 << bits) - 1));
+        }
+        return indices;
+    }
+
+    // Packs the indices in the same way as the region file format, the reverse of RegionChunk.unpackIndices
+    private long[] pack(short[] indices, int bits, boolean spanning)    {
+        if(spanning)    {
+            long[] data = new long[(4096 * bits + 63) / 64];
+            for(int i = 0; i < indices.length; i++) {
+                long bitIndex = (long) i * bits;
+                int longIndex = (int) (bitIndex >> 6);
+                int offset = (int) (bitIndex & 63);
+                data[longIndex] |= (long) indices[i] << offset;
+                if(offset + bits > 64)  {
+                    data[longIndex + 1] |= (long) indices[i] >>> (64 - offset);
+                }
+            }
+            return data;
+        }   else    {
+            int perLong = 64 / bits;
+            long[] data = new long[(4096 + perLong - 1) / perLong];
+            for(int i = 0; i < indices.length; i++) {
+                data[i / perLong] |= (long) indices[i] << ((i % perLong) * bits);
+            }
+            return data;
+        }
+    }
+
+    private BlockData makeBlockData()   {
+        return (BlockData) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{BlockData.class}, (proxy, method, args) -> null);
+    }
+}